@@ -0,0 +1,46 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * A whole arrangement, with each {@link LayoutEngine}. The canvas is arranged
+ * once before measuring, so nodes are already where they belong and the
+ * numbers do not depend on how many invocations have run.
+ */
+public class ArrangeBenchmark extends CanvasBenchmark {
+
+	@Param({ "objects", "arrays", "tidy", "layered" })
+	public String engine;
+
+	private Map<String, List<Edge>> outgoing;
+	private LayoutEngine layout;
+
+	@Override
+	protected void prepare() {
+		outgoing = canvas.outgoing();
+		layout = LayoutEngine.create(engine);
+		layout.arrange(canvas.getRoot(), canvas.getNodes(), outgoing);
+	}
+
+	/**
+	 * An arrangement from scratch, as for the first change to a canvas.
+	 */
+	@Benchmark
+	public boolean arrangeCold() {
+		layout.forget();
+		return layout.arrange(canvas.getRoot(), canvas.getNodes(), outgoing);
+	}
+
+	/**
+	 * Arranging again with whatever the engine kept from the last arrangement, as
+	 * for an edit that does not change the layout.
+	 */
+	@Benchmark
+	public boolean arrangeWarm() {
+		return layout.arrange(canvas.getRoot(), canvas.getNodes(), outgoing);
+	}
+}
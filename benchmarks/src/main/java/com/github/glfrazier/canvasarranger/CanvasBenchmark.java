@@ -0,0 +1,56 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What every benchmark shares: a synthetic canvas of each shape and size, and
+ * the same timing setup. Select a subset with JMH's <code>-p</code>, for
+ * example <code>-p shape=dag -p size=10000</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public abstract class CanvasBenchmark {
+
+	static final long SEED = 42;
+
+	@Param({ "wide", "deep", "dag", "text" })
+	public SyntheticCanvas.Shape shape;
+
+	@Param({ "100", "1000", "10000", "100000" })
+	public int size;
+
+	protected SyntheticCanvas canvas;
+
+	@Setup
+	public void setUp() throws Exception {
+		// The arranger reports its progress on System.out; that is not what is
+		// being measured.
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		canvas = SyntheticCanvas.generate(shape, size, SEED);
+		prepare();
+	}
+
+	/**
+	 * Set up whatever else the benchmark needs, after {@link #canvas} is
+	 * generated.
+	 */
+	protected void prepare() throws Exception {
+	}
+}
@@ -0,0 +1,24 @@
+package com.github.glfrazier.canvasarranger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Choosing the sides of every edge of a hierarchy that is already built. After
+ * the first invocation the sides are already right, so this measures the walk
+ * and the comparisons.
+ */
+public class FixEdgesBenchmark extends CanvasBenchmark {
+
+	private Arranger arranger;
+
+	@Override
+	protected void prepare() {
+		arranger = new Arranger();
+		arranger.buildHierarchy(canvas.getRoot(), canvas.getNodes(), canvas.outgoing());
+	}
+
+	@Benchmark
+	public boolean fixEdges() {
+		return arranger.fixEdges();
+	}
+}
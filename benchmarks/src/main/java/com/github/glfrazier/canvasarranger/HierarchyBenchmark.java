@@ -0,0 +1,27 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * The breadth-first walk that turns the edges into a hierarchy, on its own.
+ */
+public class HierarchyBenchmark extends CanvasBenchmark {
+
+	private Map<String, List<Edge>> outgoing;
+	private Arranger arranger;
+
+	@Override
+	protected void prepare() {
+		outgoing = canvas.outgoing();
+		arranger = new Arranger();
+	}
+
+	@Benchmark
+	public Arranger buildHierarchy() {
+		arranger.buildHierarchy(canvas.getRoot(), canvas.getNodes(), outgoing);
+		return arranger;
+	}
+}
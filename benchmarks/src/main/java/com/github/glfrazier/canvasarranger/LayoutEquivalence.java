@@ -0,0 +1,98 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that {@link ArrayArranger} lays out canvases exactly as
+ * {@link Arranger} does, both sequentially and on the fork/join pool. The
+ * parallel path normally only runs on hierarchies of 10000 nodes or more, so
+ * here its threshold is forced down until small canvases are split into many
+ * tasks. Every shape of {@link SyntheticCanvas} is tried at several sizes and
+ * seeds; the positions of all nodes and the sides of all edges must agree.
+ * <p>
+ * Run it from the benchmarks jar:
+ * <code>java -cp benchmarks/target/benchmarks.jar com.github.glfrazier.canvasarranger.LayoutEquivalence</code>.
+ * The exit status is 1 if any canvas was laid out differently. On a machine
+ * with one processor, add
+ * <code>-Djava.util.concurrent.ForkJoinPool.common.parallelism=4</code> so
+ * that the tasks really do run on several threads.
+ */
+public class LayoutEquivalence {
+
+	private static final int[] SIZES = { 1, 2, 50, 1000, 20000 };
+	private static final int[] THRESHOLDS = { 2, 16, 500 };
+	private static final int SEEDS = 3;
+
+	public static void main(String[] args) {
+		PrintStream out = System.out;
+		// The engines report their progress on System.out.
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		int checked = 0;
+		int failed = 0;
+		for (SyntheticCanvas.Shape shape : SyntheticCanvas.Shape.values()) {
+			for (int size : SIZES) {
+				for (long seed = 0; seed < SEEDS; seed++) {
+					SyntheticCanvas expected = SyntheticCanvas.generate(shape, size, seed);
+					new Arranger().arrange(expected.getRoot(), expected.getNodes(), expected.outgoing());
+					String what = shape + ", " + size + " nodes, seed " + seed;
+					failed += check(expected, shape, size, seed, 0, what + ", sequential", out);
+					for (int threshold : THRESHOLDS) {
+						failed += check(expected, shape, size, seed, threshold,
+								what + ", parallel above " + threshold, out);
+					}
+					checked += 1 + THRESHOLDS.length;
+				}
+			}
+		}
+		out.println(checked + " layouts checked, " + failed + " differed from Arranger's.");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Lay out a fresh copy of the canvas with an {@link ArrayArranger} and
+	 * compare it with <code>expected</code>.
+	 *
+	 * @return 1 if they differ, otherwise 0
+	 */
+	private static int check(SyntheticCanvas expected, SyntheticCanvas.Shape shape, int size, long seed,
+			int threshold, String what, PrintStream out) {
+		SyntheticCanvas actual = SyntheticCanvas.generate(shape, size, seed);
+		new ArrayArranger(threshold).arrange(actual.getRoot(), actual.getNodes(), actual.outgoing(),
+				CycleToken.NONE);
+		String difference = difference(expected, actual);
+		if (difference == null) {
+			return 0;
+		}
+		out.println(what + ": " + difference);
+		return 1;
+	}
+
+	/**
+	 * @return the first difference between the two layouts, or null if there is
+	 *         none
+	 */
+	private static String difference(SyntheticCanvas expected, SyntheticCanvas actual) {
+		Map<String, Node> actualNodes = actual.getNodes();
+		for (Node e : expected.getNodes().values()) {
+			Node a = actualNodes.get(e.getID());
+			if (a.getX() != e.getX() || a.getY() != e.getY()) {
+				return "node " + e.getID() + " is at (" + a.getX() + "," + a.getY() + "), not (" + e.getX() + ","
+						+ e.getY() + ")";
+			}
+		}
+		List<Edge> expectedEdges = expected.getEdges();
+		List<Edge> actualEdges = actual.getEdges();
+		for (int i = 0; i < expectedEdges.size(); i++) {
+			Edge e = expectedEdges.get(i);
+			Edge a = actualEdges.get(i);
+			if (a.getFromSide() != e.getFromSide() || a.getToSide() != e.getToSide()) {
+				return "edge " + e.getID() + " runs " + a.getFromSide() + "-" + a.getToSide() + ", not "
+						+ e.getFromSide() + "-" + e.getToSide();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,26 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Loading a canvas from its bytes: the streaming parse into nodes and edges,
+ * indexing the edges and fingerprinting the result.
+ */
+public class ParseBenchmark extends CanvasBenchmark {
+
+	private byte[] json;
+	private CanvasArranger arranger;
+
+	@Override
+	protected void prepare() throws IOException {
+		json = canvas.toJson();
+		arranger = new CanvasArranger("synthetic.canvas");
+	}
+
+	@Benchmark
+	public boolean load() throws IOException {
+		return arranger.loadCanvas(json);
+	}
+}
@@ -0,0 +1,51 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Producing the bytes of an arranged canvas, either by serializing the whole
+ * model (<code>rewrite</code>) or by patching the bytes the canvas was loaded
+ * from (<code>patch</code>). Both start from the same canvas, loaded and then
+ * arranged, so most coordinates change and both write the same arrangement.
+ * Nothing is written to disk.
+ */
+public class SerializeBenchmark extends CanvasBenchmark {
+
+	@Param({ "rewrite", "patch" })
+	public String mode;
+
+	private CanvasArranger arranger;
+
+	@Override
+	protected void prepare() throws IOException {
+		arranger = new CanvasArranger("synthetic.canvas");
+		arranger.loadCanvas(canvas.toJson());
+		arranger.arrangeLoaded();
+	}
+
+	@Benchmark
+	public long serialize() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		arranger.canvasWriter(2, mode.equals("patch")).writeTo(out);
+		return out.count;
+	}
+
+	/** Discards what is written, but counts it so that the writing is not optimized away. */
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
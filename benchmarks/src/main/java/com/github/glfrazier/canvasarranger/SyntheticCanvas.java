@@ -0,0 +1,153 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * A generated canvas for the benchmarks. The same shape, size and seed always
+ * give the same canvas, byte for byte.
+ */
+public class SyntheticCanvas {
+
+	public static enum Shape {
+		/** A shallow tree: every node has up to 32 children. */
+		wide,
+		/** Long chains that only occasionally branch. */
+		deep,
+		/** A random tree plus three backlinks per node. */
+		dag,
+		/**
+		 * A random tree whose cards carry long text: 16K characters each, or less
+		 * on big canvases, so that no canvas holds more than about 64M of text.
+		 */
+		text
+	}
+
+	private static final Edge.Side[] SIDES = Edge.Side.values();
+	private static final int MAX_TOTAL_TEXT = 64 * 1024 * 1024;
+	/** Card text is drawn from these characters, including some that need escaping. */
+	private static final String WORDS = "lorem ipsum dolor sit amet \"quoted\"\n";
+
+	private final Map<String, Node> nodes;
+	private final List<Edge> edges;
+	private final Node root;
+
+	private SyntheticCanvas(Map<String, Node> nodes, List<Edge> edges, Node root) {
+		this.nodes = nodes;
+		this.edges = edges;
+		this.root = root;
+	}
+
+	public static SyntheticCanvas generate(Shape shape, int size, long seed) {
+		Random random = new Random(seed * 31 + shape.ordinal() * 1_000_003L + size);
+		int textLength = shape == Shape.text ? Math.min(16 * 1024, MAX_TOTAL_TEXT / size) : 20;
+		Map<String, Node> nodes = new LinkedHashMap<>();
+		List<String> ids = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			String id = String.format("%016x", random.nextLong());
+			ids.add(id);
+			nodes.put(id, new Node(id, null, random.nextInt(20000) - 10000, random.nextInt(20000) - 10000,
+					100 + 20 * random.nextInt(20), 60 + 20 * random.nextInt(10), Node.NodeType.text,
+					text(random, textLength)));
+		}
+		List<Edge> edges = new ArrayList<>();
+		for (int i = 1; i < size; i++) {
+			int parent;
+			switch (shape) {
+			case wide:
+				parent = (i - 1) / 32;
+				break;
+			case deep:
+				parent = random.nextInt(16) == 0 ? random.nextInt(i) : i - 1;
+				break;
+			default:
+				parent = random.nextInt(i);
+			}
+			edges.add(edge(random, "t" + i, ids.get(parent), ids.get(i)));
+		}
+		if (shape == Shape.dag) {
+			for (int i = 0; i < size * 3; i++) {
+				edges.add(edge(random, "b" + i, ids.get(random.nextInt(size)), ids.get(random.nextInt(size))));
+			}
+			// Spread the backlinks among the tree edges, as they would be on a canvas
+			// that grew by hand.
+			Collections.shuffle(edges, random);
+		}
+		return new SyntheticCanvas(nodes, edges, nodes.get(ids.get(0)));
+	}
+
+	private static Edge edge(Random random, String id, String from, String to) {
+		return new Edge(id, null, from, to, SIDES[random.nextInt(SIDES.length)], SIDES[random.nextInt(SIDES.length)],
+				null, null, null);
+	}
+
+	private static String text(Random random, int length) {
+		StringBuilder sb = new StringBuilder(length);
+		while (sb.length() < length) {
+			sb.append(WORDS.charAt(random.nextInt(WORDS.length())));
+		}
+		return sb.toString();
+	}
+
+	public Map<String, Node> getNodes() {
+		return nodes;
+	}
+
+	public List<Edge> getEdges() {
+		return edges;
+	}
+
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return a new index of the edges leaving each node, as
+	 *         {@link CanvasArranger} builds it
+	 */
+	public Map<String, List<Edge>> outgoing() {
+		Map<String, List<Edge>> outgoing = new HashMap<>();
+		for (Edge e : edges) {
+			outgoing.computeIfAbsent(e.getFromNode(), k -> new ArrayList<Edge>()).add(e);
+		}
+		return outgoing;
+	}
+
+	/**
+	 * @return the canvas as Obsidian would save it, with the arranger's
+	 *         annotations
+	 */
+	public byte[] toJson() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator g = Json
+				.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true))
+				.createGenerator(out);
+		g.writeStartObject();
+		g.writeStartArray("nodes");
+		for (Node n : nodes.values()) {
+			n.write(g);
+		}
+		g.writeEnd();
+		g.writeStartArray("edges");
+		for (Edge e : edges) {
+			e.write(g);
+		}
+		g.writeEnd();
+		g.writeStartObject("annotations");
+		g.write("modified", 1L);
+		g.write("root", root.getID());
+		g.writeEnd();
+		g.writeEnd();
+		g.close();
+		return out.toByteArray();
+	}
+}
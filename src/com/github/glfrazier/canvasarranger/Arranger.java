@@ -2,73 +2,241 @@ package com.github.glfrazier.canvasarranger;
 
 import static java.lang.Math.max;
 
-import java.awt.Point;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Objects;
 
-public class Arranger {
+import com.github.glfrazier.canvasarranger.CanvasMetrics.Phase;
+
+public class Arranger implements LayoutEngine {
 
 	private static final int COL_SEPARATION = 80;
 	private static final int ROW_SEPARATION = 80;
 
 	private Anode root;
+	/** Every node of the hierarchy in breadth-first order, parents before children. */
+	private List<Anode> order;
+	/**
+	 * What the previous arrangement decided for each node of its hierarchy, keyed
+	 * by node ID. Only the geometry is kept, so holding on to it between cycles
+	 * does not pin the previous load's nodes and edges.
+	 */
+	private Map<String, Placement> previous;
+	private CanvasMetrics metrics;
+	/** The token of the arrangement in progress. */
+	private CycleToken token = CycleToken.NONE;
+
+	/**
+	 * An Arranger remembers the hierarchy, subtree sizes and positions of its
+	 * last arrangement, so it should be kept for as long as the same canvas is
+	 * being arranged.
+	 */
+	public Arranger() {
+		previous = new HashMap<>();
+	}
+
+	/**
+	 * Arrange the hierarchy below <code>root</code>. Only nodes that are new,
+	 * resized, re-parented, have a different number of children or are no longer
+	 * where the previous arrangement put them are considered changed. Only the
+	 * changed nodes and their ancestors are re-measured, and a subtree is only
+	 * re-placed if it is changed or its box has moved. An arrangement that is
+	 * cancelled leaves what is remembered as it was.
+	 * 
+	 * @param root     the node at the top of the hierarchy
+	 * @param nodes    all of the nodes on the canvas, keyed by ID
+	 * @param outgoing the edges leaving each node, keyed by the ID of the node
+	 *                 they leave from
+	 * @return true if any node was moved or any edge was changed
+	 */
+	@Override
+	public boolean arrange(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing,
+			CycleToken token) {
+		long start = System.nanoTime();
+		long built;
+		long placed;
+		long fixed;
+		boolean modified;
+		this.token = token;
+		try {
+			buildHierarchy(root, nodes, outgoing);
+			built = System.nanoTime();
+			markChanges();
+			measure();
+			int midpointX = root.getX() + root.getWidth() / 2;
+			modified = place(midpointX, root.getY());
+			placed = System.nanoTime();
+			modified |= fixEdges();
+			fixed = System.nanoTime();
+		} finally {
+			this.token = CycleToken.NONE;
+		}
+		remember();
+		if (metrics != null) {
+			metrics.record(Phase.hierarchy, built - start);
+			metrics.record(Phase.arrange, placed - built + System.nanoTime() - fixed);
+			metrics.record(Phase.fixEdges, fixed - placed);
+		}
+		return modified;
+	}
+
+	/**
+	 * Discard what is remembered about the previous arrangement; the next one
+	 * will lay out everything.
+	 */
+	@Override
+	public void forget() {
+		previous = new HashMap<>();
+	}
+
+	/**
+	 * Move what is remembered about the previous arrangement along with its
+	 * nodes, so that the next arrangement finds them where it expects them.
+	 */
+	@Override
+	public void translate(int dx, int dy) {
+		if (dx == 0 && dy == 0) {
+			return;
+		}
+		Map<String, Placement> moved = new HashMap<>(previous.size() * 2);
+		for (Map.Entry<String, Placement> entry : previous.entrySet()) {
+			moved.put(entry.getKey(), new Placement(entry.getValue(), dx, dy));
+		}
+		previous = moved;
+	}
+
+	@Override
+	public void setMetrics(CanvasMetrics metrics) {
+		this.metrics = metrics;
+	}
 
-	public Arranger(Node root, Map<String, Node> nodes, Map<String, Edge> edges) {
+	/**
+	 * Build the hierarchy below <code>root</code>, the first step of
+	 * {@link #arrange(Node, Map, Map, CycleToken)}. Only the benchmarks call this directly.
+	 */
+	void buildHierarchy(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing) {
 		this.root = new Anode(root, 0);
-		Set<Edge> edgeSet = new HashSet<>();
-		edgeSet.addAll(edges.values());
+		order = new ArrayList<>();
 		Map<Node, Anode> nodeMap = new HashMap<>();
 		nodeMap.put(root, this.root);
-		buildHierarchy(this.root, nodes, edges, edgeSet, nodeMap);
+		buildHierarchy(this.root, nodes, outgoing, nodeMap);
 	}
 
-	private void buildHierarchy(Anode root, Map<String, Node> nodes, Map<String, Edge> edges, Set<Edge> edgeSet,
+	/**
+	 * Breadth-first from the root: the first edge to reach a node makes it a
+	 * child, and every later edge to it is a backlink. Each node is dequeued once
+	 * and each of its outgoing edges is looked at once, so this is O(V+E).
+	 */
+	private void buildHierarchy(Anode root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing,
 			Map<Node, Anode> nodeMap) {
-		List<Anode> nodesToProcess = new LinkedList<>();
+		Deque<Anode> nodesToProcess = new ArrayDeque<>();
 		nodesToProcess.add(root);
 		while (!nodesToProcess.isEmpty()) {
-			Anode anode = nodesToProcess.remove(0);
+			Anode anode = nodesToProcess.poll();
+			order.add(anode);
+			token.check(order.size());
 			Node n = anode.node;
-			for (Iterator<Edge> iter = edgeSet.iterator(); iter.hasNext();) {
-				Edge e = iter.next();
-				if (e.getFromNode().equals(n.getID())) {
-					iter.remove();
-					Node dst = nodes.get(e.getToNode());
-					if (!nodeMap.containsKey(dst)) {
-						Anode a = new Anode(dst, anode.depth + 1);
-						nodeMap.put(dst, a);
-						nodesToProcess.add(a);
-						anode.children.add(new Aedge(e, anode, a));
-					} else {
-						anode.backlinks.add(new Aedge(e, anode, nodeMap.get(dst)));
-					}
+			List<Edge> edges = outgoing.get(n.getID());
+			if (edges == null) {
+				continue;
+			}
+			for (Edge e : edges) {
+				Node dst = nodes.get(e.getToNode());
+				if (dst == null) {
+					continue;
+				}
+				if (!nodeMap.containsKey(dst)) {
+					Anode a = new Anode(dst, anode.depth + 1);
+					a.parent = anode;
+					nodeMap.put(dst, a);
+					nodesToProcess.add(a);
+					anode.children.add(new Aedge(e, anode, a));
+				} else {
+					anode.backlinks.add(new Aedge(e, anode, nodeMap.get(dst)));
 				}
 			}
 		}
 	}
 
-	public boolean arrange() {
-		int midpointX = root.node.getX() + root.node.getWidth() / 2;
-		boolean modified = arrangeChildren(root, midpointX, root.node.getY());
-		modified |= fixEdges(root);
-		return modified;
+	/**
+	 * Compare each node with what the previous arrangement left behind. A node
+	 * whose subtree contains a change is itself changed, so after this pass a
+	 * node that is not <code>changed</code> heads a subtree that is identical to
+	 * last time.
+	 */
+	private void markChanges() {
+		for (Anode node : order) {
+			Placement p = previous.get(node.node.getID());
+			node.previous = p;
+			String parentID = node.parent == null ? null : node.parent.node.getID();
+			node.changed = p == null || p.width != node.node.getWidth() || p.height != node.node.getHeight()
+					|| p.x != node.node.getX() || p.y != node.node.getY() || p.childCount != node.children.size()
+					|| !Objects.equals(p.parentID, parentID);
+		}
+		for (int i = order.size() - 1; i > 0; i--) {
+			Anode node = order.get(i);
+			if (node.changed) {
+				node.parent.changed = true;
+			}
+		}
+	}
+
+	private void remember() {
+		Map<String, Placement> current = new HashMap<>();
+		for (Anode node : order) {
+			// Nodes below a subtree that was skipped were never given a target and
+			// are exactly where they were.
+			current.put(node.node.getID(), node.targeted ? new Placement(node) : node.previous);
+		}
+		previous = current;
+	}
+
+	/**
+	 * Compute the width and height of every subtree, children before parents, so
+	 * that each subtree is measured exactly once.
+	 */
+	private void measure() {
+		for (int i = order.size() - 1; i >= 0; i--) {
+			token.check(i);
+			Anode node = order.get(i);
+			if (!node.changed) {
+				node.subtreeWidth = node.previous.subtreeWidth;
+				node.subtreeHeight = node.previous.subtreeHeight;
+				continue;
+			}
+			int childrenWidth = 0;
+			int childrenHeight = 0;
+			if (!node.children.isEmpty()) {
+				for (Aedge e : node.children) {
+					childrenWidth += e.to.subtreeWidth;
+					childrenHeight = max(e.to.subtreeHeight, childrenHeight);
+				}
+				childrenWidth += (node.children.size() - 1) * COL_SEPARATION;
+			}
+			node.subtreeWidth = max(node.node.getWidth(), childrenWidth);
+			node.subtreeHeight = node.node.getHeight() + ROW_SEPARATION + childrenHeight;
+		}
 	}
 
-	private boolean fixEdges(Anode root) {
+	/**
+	 * Set the sides of the edges of the hierarchy last built: bottom to top from
+	 * parent to child, and sideways for backlinks.
+	 *
+	 * @return true if any edge changed
+	 */
+	boolean fixEdges() {
 		boolean modified = false;
-		List<Anode> nodesToProcess = new LinkedList<>();
+		Deque<Anode> nodesToProcess = new ArrayDeque<>();
 		nodesToProcess.add(root);
+		int count = 0;
 		while (!nodesToProcess.isEmpty()) {
-			Anode node = nodesToProcess.remove(0);
+			Anode node = nodesToProcess.poll();
+			token.check(++count);
 			for (Aedge e : node.children) {
 				if (e.edge.getFromSide() != Edge.Side.bottom || e.edge.getToSide() != Edge.Side.top) {
 					modified = true;
@@ -102,34 +270,44 @@ public class Arranger {
 	}
 
 	/**
-	 * Locate the abstract box that this node is at the top of at (x,y), where (x,y)
-	 * is the center-top of the box.
+	 * Place the root's box with its center-top at (x,y), and every other box
+	 * centered under its parent, with the children's boxes side by side in their
+	 * current left-to-right order. Parents are placed before their children, so
+	 * a node's children are sorted by where they were before this arrangement.
 	 * 
-	 * @param node
-	 * @param x
-	 * @param y
-	 * @return
+	 * @return true if any node moved
 	 */
-	public boolean arrangeChildren(Anode node, int x, int y) {
+	private boolean place(int x, int y) {
 		boolean modified = false;
-		Point[] dims = node.getAggregateDims();
-		int boxWidth = dims[0].x;
-		int oldX = node.node.getX();
-		int oldY = node.node.getY();
-		int newX = x - node.node.getWidth() / 2;
-		int newY = y;
-		modified = (oldX != newX || oldY != newY);
-		node.node.setX(newX);
-		node.node.setY(newY);
-		int nextY = y + node.node.getHeight() + ROW_SEPARATION;
-		int nextX = x - boxWidth / 2;
-		int index = 0;
-		sortNodesLeftToRight(node.children);
-		for (Aedge e : node.children) {
-			Anode child = e.to;
-			index += 1;
-			modified |= arrangeChildren(child, nextX + dims[index].x / 2, nextY);
-			nextX += COL_SEPARATION + dims[index].x;
+		root.centerX = x;
+		root.top = y;
+		root.targeted = true;
+		Deque<Anode> nodesToPlace = new ArrayDeque<>();
+		nodesToPlace.push(root);
+		int count = 0;
+		while (!nodesToPlace.isEmpty()) {
+			Anode node = nodesToPlace.pop();
+			token.check(++count);
+			if (!node.changed && node.centerX == node.previous.centerX && node.top == node.previous.top) {
+				// Same subtree, same box: everything in it is already where it belongs.
+				continue;
+			}
+			int newX = node.centerX - node.node.getWidth() / 2;
+			int newY = node.top;
+			modified |= (node.node.getX() != newX || node.node.getY() != newY);
+			node.node.setX(newX);
+			node.node.setY(newY);
+			int nextY = newY + node.node.getHeight() + ROW_SEPARATION;
+			int nextX = node.centerX - node.subtreeWidth / 2;
+			node.children.sort(leftToRight);
+			for (Aedge e : node.children) {
+				Anode child = e.to;
+				child.centerX = nextX + child.subtreeWidth / 2;
+				child.top = nextY;
+				child.targeted = true;
+				nextX += COL_SEPARATION + child.subtreeWidth;
+				nodesToPlace.push(child);
+			}
 		}
 		return modified;
 	}
@@ -142,15 +320,6 @@ public class Arranger {
 		}
 	};
 
-	private void sortNodesLeftToRight(List<Aedge> children) {
-		SortedSet<Aedge> sorted = new TreeSet<Aedge>(leftToRight);
-		sorted.addAll(children);
-		children.clear();
-		for(Aedge ae : sorted) {
-			children.add(ae);
-		}
-	}
-
 	private static class Anode {
 
 		Node node;
@@ -158,6 +327,18 @@ public class Arranger {
 		List<Aedge> children;
 		List<Aedge> backlinks;
 		int depth;
+		/** The width and height of the box holding this node and its descendants. */
+		int subtreeWidth;
+		int subtreeHeight;
+		/** Where the center-top of this node goes, as decided by its parent. */
+		int centerX;
+		int top;
+		/** This node in the previous arrangement, or null if it was not in it. */
+		Placement previous;
+		/** True unless this node and its whole subtree are as they were last time. */
+		boolean changed;
+		/** True once centerX and top have been set for this arrangement. */
+		boolean targeted;
 
 		public Anode(Node n, int depth) {
 			if (n == null) {
@@ -174,34 +355,49 @@ public class Arranger {
 			return "anode:" + node.toString();
 		}
 
-		/**
-		 * Returns the aggregate dimensions (width and height) of this node and, in
-		 * order, the aggregate dims of its children.
-		 * 
-		 * @return
-		 */
-		public Point[] getAggregateDims() {
-			Point[] result = new Point[children.size() + 1];
-			int childrenWidth = 0;
-			int childrenHeight = 0;
-			if (children.size() > 0) {
-				int index = 1;
-				for (Aedge edge : children) {
-					Anode child = edge.to;
-					Point[] dims = child.getAggregateDims();
-					childrenWidth += dims[0].x;
-					childrenHeight = (int) max(dims[0].y, childrenHeight);
-					result[index++] = dims[0];
-				}
-				childrenWidth += (children.size() - 1) * COL_SEPARATION;
-			}
-			int myWidth = max(node.getWidth(), childrenWidth);
-			int myHeight = node.getHeight() + ROW_SEPARATION + childrenHeight;
-			Point mySize = new Point(myWidth, myHeight);
-			result[0] = mySize;
-			return result;
+	}
+
+	/**
+	 * The geometry of one node as of the end of an arrangement.
+	 */
+	private static class Placement {
+		final String parentID;
+		final int childCount;
+		final int x;
+		final int y;
+		final int width;
+		final int height;
+		final int subtreeWidth;
+		final int subtreeHeight;
+		final int centerX;
+		final int top;
+
+		Placement(Anode a) {
+			parentID = a.parent == null ? null : a.parent.node.getID();
+			childCount = a.children.size();
+			x = a.node.getX();
+			y = a.node.getY();
+			width = a.node.getWidth();
+			height = a.node.getHeight();
+			subtreeWidth = a.subtreeWidth;
+			subtreeHeight = a.subtreeHeight;
+			centerX = a.centerX;
+			top = a.top;
 		}
 
+		/** <code>p</code> moved by (<code>dx</code>, <code>dy</code>). */
+		Placement(Placement p, int dx, int dy) {
+			parentID = p.parentID;
+			childCount = p.childCount;
+			x = p.x + dx;
+			y = p.y + dy;
+			width = p.width;
+			height = p.height;
+			subtreeWidth = p.subtreeWidth;
+			subtreeHeight = p.subtreeHeight;
+			centerX = p.centerX + dx;
+			top = p.top + dy;
+		}
 	}
 
 	private static class Aedge {
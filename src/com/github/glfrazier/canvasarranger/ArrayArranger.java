@@ -0,0 +1,618 @@
+package com.github.glfrazier.canvasarranger;
+
+import static java.lang.Math.max;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import com.github.glfrazier.canvasarranger.CanvasMetrics.Phase;
+
+/**
+ * Arranges a canvas exactly as {@link Arranger} does, but on primitive arrays
+ * indexed by dense node numbers rather than on a graph of objects. Each node is
+ * numbered by stamping its index on it, so resolving an edge costs one lookup
+ * of its target's ID, in the canvas's own map; after that the hierarchy,
+ * measurement and placement passes touch only <code>int</code> arrays.
+ * <p>
+ * The hierarchy is kept in breadth-first order, in which the children of a
+ * node are always adjacent: a node's children are
+ * <code>order[firstChild[n]]</code> through
+ * <code>order[firstChild[n] + childCount[n] - 1]</code>. The edges are grouped
+ * by the node they leave from, in the order given, so the first edge to reach
+ * a node still decides whose child it is.
+ * <p>
+ * Nothing is remembered between arrangements, so every arrangement lays out the
+ * whole hierarchy; the arrays are reused while they are large enough.
+ * <p>
+ * Once a node's children are measured, its subtrees are independent, so on a
+ * machine with more than one processor a hierarchy of at least
+ * <code>canvasarranger.parallelThreshold</code> nodes (default 10000; 0 turns
+ * this off) is measured and placed on the common {@link ForkJoinPool}. Sibling
+ * subtrees are handed out in batches of about that many nodes, and anything
+ * smaller is done sequentially. Every node's geometry depends only on its own
+ * subtree and its parent's, so the result is the same as the sequential one.
+ */
+public class ArrayArranger implements LayoutEngine {
+
+	private static final int COL_SEPARATION = 80;
+	private static final int ROW_SEPARATION = 80;
+
+	/** parent[] of a node the breadth-first search has not reached. */
+	private static final int UNREACHED = -2;
+
+	private static final byte IGNORED = 0;
+	private static final byte CHILD = 1;
+	private static final byte BACKLINK = 2;
+
+	private static final int DEFAULT_PARALLEL_THRESHOLD = Runtime.getRuntime().availableProcessors() > 1
+			? Integer.getInteger("canvasarranger.parallelThreshold", 10000)
+			: 0;
+
+	// Per node.
+	private Node[] nodeAt;
+	private int[] x;
+	private int[] y;
+	private int[] width;
+	private int[] height;
+	private int[] parent;
+	private int[] firstChild;
+	private int[] childCount;
+	private int[] subtreeWidth;
+	private int[] subtreeHeight;
+	private int[] centerX;
+	private int[] top;
+	/** The hierarchy's nodes in breadth-first order. */
+	private int[] order;
+	/** The number of nodes in each node's subtree; only counted for parallel layout. */
+	private int[] subtreeSize;
+
+	// Per edge.
+	private Edge[] edgeAt;
+	private int[] edgeFrom;
+	private int[] edgeTo;
+	private byte[] edgeKind;
+	/** The edges leaving node n are byFrom[fromStart[n]] to byFrom[fromStart[n+1]-1]. */
+	private int[] fromStart;
+	private int[] byFrom;
+
+	// Scratch space for sorting one node's children.
+	private long[] sortKeys;
+	private int[] sortNodes;
+	private CanvasMetrics metrics;
+	/** The size of hierarchy that is laid out in parallel, and of the batches it is split into; 0 for never. */
+	private final int parallelThreshold;
+	/** The token of the arrangement in progress. */
+	private volatile CycleToken token = CycleToken.NONE;
+
+	public ArrayArranger() {
+		this(DEFAULT_PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * @param parallelThreshold the number of nodes from which a hierarchy is
+	 *                          laid out in parallel, and about how many each
+	 *                          task takes on; 0 to always lay out sequentially
+	 */
+	ArrayArranger(int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+		forget();
+	}
+
+	@Override
+	public boolean arrange(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing,
+			CycleToken token) {
+		long start = System.nanoTime();
+		this.token = token;
+		int n = 0;
+		int m = 0;
+		try {
+			n = indexNodes(nodes);
+			m = indexEdges(n, nodes, outgoing);
+			int r = root.index;
+			int count = buildHierarchy(n, r);
+			long built = System.nanoTime();
+			boolean modified;
+			long placed;
+			if (parallelThreshold > 0 && count >= parallelThreshold) {
+				countSubtrees(count);
+				ForkJoinPool pool = ForkJoinPool.commonPool();
+				pool.invoke(new Measure(0, 1));
+				centerX[r] = x[r] + width[r] / 2;
+				top[r] = y[r];
+				modified = pool.invoke(new Place(0, 1));
+				placed = System.nanoTime();
+				modified |= pool.invoke(new FixEdges(0, m));
+			} else {
+				measure(count);
+				modified = place(count, x[r] + width[r] / 2, y[r]);
+				placed = System.nanoTime();
+				modified |= fixEdges(0, m);
+			}
+			if (metrics != null) {
+				long fixed = System.nanoTime();
+				metrics.record(Phase.hierarchy, built - start);
+				metrics.record(Phase.arrange, placed - built);
+				metrics.record(Phase.fixEdges, fixed - placed);
+			}
+			return modified;
+		} catch (CancellationException e) {
+			// Indexing may have been cut short, with more than n or m slots filled.
+			n = nodeAt.length;
+			m = edgeAt.length;
+			throw e;
+		} finally {
+			this.token = CycleToken.NONE;
+			// Do not keep this load's nodes and edges reachable.
+			Arrays.fill(nodeAt, 0, n, null);
+			Arrays.fill(edgeAt, 0, m, null);
+		}
+	}
+
+	/**
+	 * Release the arrays; they are only reused to save allocating them again.
+	 */
+	@Override
+	public void forget() {
+		nodeAt = new Node[0];
+		x = y = width = height = parent = firstChild = childCount = new int[0];
+		subtreeWidth = subtreeHeight = centerX = top = order = subtreeSize = new int[0];
+		edgeAt = new Edge[0];
+		edgeFrom = edgeTo = byFrom = fromStart = new int[0];
+		edgeKind = new byte[0];
+		sortKeys = new long[0];
+		sortNodes = new int[0];
+	}
+
+	@Override
+	public void setMetrics(CanvasMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private int indexNodes(Map<String, Node> nodes) {
+		int n = nodes.size();
+		if (nodeAt.length < n) {
+			int c = max(n, nodeAt.length * 3 / 2);
+			nodeAt = new Node[c];
+			x = new int[c];
+			y = new int[c];
+			width = new int[c];
+			height = new int[c];
+			parent = new int[c];
+			firstChild = new int[c];
+			childCount = new int[c];
+			subtreeWidth = new int[c];
+			subtreeHeight = new int[c];
+			centerX = new int[c];
+			top = new int[c];
+			order = new int[c];
+			subtreeSize = new int[c];
+			fromStart = new int[c + 1];
+			sortKeys = new long[c];
+			sortNodes = new int[c];
+		}
+		int i = 0;
+		for (Node node : nodes.values()) {
+			token.check(i);
+			nodeAt[i] = node;
+			x[i] = node.getX();
+			y[i] = node.getY();
+			width[i] = node.getWidth();
+			height[i] = node.getHeight();
+			node.index = i;
+			i++;
+		}
+		return n;
+	}
+
+	/**
+	 * Resolve the endpoints of every edge and group the edges by the node they
+	 * leave from, with a counting sort that keeps each node's edges in order.
+	 * Edges to or from a node that is not on the canvas are dropped.
+	 *
+	 * @return the number of edges
+	 */
+	private int indexEdges(int n, Map<String, Node> nodes, Map<String, List<Edge>> outgoing) {
+		int total = 0;
+		for (List<Edge> list : outgoing.values()) {
+			total += list.size();
+		}
+		if (edgeAt.length < total) {
+			int c = max(total, edgeAt.length * 3 / 2);
+			edgeAt = new Edge[c];
+			edgeFrom = new int[c];
+			edgeTo = new int[c];
+			edgeKind = new byte[c];
+			byFrom = new int[c];
+		}
+		Arrays.fill(fromStart, 0, n + 1, 0);
+		int m = 0;
+		for (Map.Entry<String, List<Edge>> entry : outgoing.entrySet()) {
+			Node fromNode = nodes.get(entry.getKey());
+			if (fromNode == null) {
+				continue;
+			}
+			int from = fromNode.index;
+			for (Edge e : entry.getValue()) {
+				Node toNode = nodes.get(e.getToNode());
+				if (toNode == null) {
+					continue;
+				}
+				int to = toNode.index;
+				token.check(m);
+				edgeAt[m] = e;
+				edgeFrom[m] = from;
+				edgeTo[m] = to;
+				edgeKind[m] = IGNORED;
+				fromStart[from + 1]++;
+				m++;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			fromStart[i + 1] += fromStart[i];
+		}
+		// fromStart[from] is used as the next free slot, and afterwards holds the
+		// end of the group; shift it back down to the start.
+		for (int e = 0; e < m; e++) {
+			byFrom[fromStart[edgeFrom[e]]++] = e;
+		}
+		for (int i = n; i > 0; i--) {
+			fromStart[i] = fromStart[i - 1];
+		}
+		fromStart[0] = 0;
+		return m;
+	}
+
+	/**
+	 * Breadth-first from the root: the first edge to reach a node makes it a
+	 * child, and every later edge to it is a backlink.
+	 *
+	 * @return the number of nodes in the hierarchy
+	 */
+	private int buildHierarchy(int n, int root) {
+		Arrays.fill(parent, 0, n, UNREACHED);
+		parent[root] = -1;
+		order[0] = root;
+		int tail = 1;
+		for (int head = 0; head < tail; head++) {
+			token.check(head);
+			int u = order[head];
+			firstChild[u] = tail;
+			childCount[u] = 0;
+			for (int i = fromStart[u]; i < fromStart[u + 1]; i++) {
+				int e = byFrom[i];
+				int v = edgeTo[e];
+				if (parent[v] == UNREACHED) {
+					parent[v] = u;
+					order[tail++] = v;
+					childCount[u]++;
+					edgeKind[e] = CHILD;
+				} else {
+					edgeKind[e] = BACKLINK;
+				}
+			}
+		}
+		return tail;
+	}
+
+	/**
+	 * Compute the width and height of every subtree, children before parents.
+	 */
+	private void measure(int count) {
+		for (int i = count - 1; i >= 0; i--) {
+			token.check(i);
+			measureNode(order[i]);
+		}
+	}
+
+	/**
+	 * Measure one node's subtree, from its children's.
+	 */
+	private void measureNode(int u) {
+		int childrenWidth = 0;
+		int childrenHeight = 0;
+		int k = childCount[u];
+		if (k > 0) {
+			int end = firstChild[u] + k;
+			for (int j = firstChild[u]; j < end; j++) {
+				int c = order[j];
+				childrenWidth += subtreeWidth[c];
+				childrenHeight = max(subtreeHeight[c], childrenHeight);
+			}
+			childrenWidth += (k - 1) * COL_SEPARATION;
+		}
+		subtreeWidth[u] = max(width[u], childrenWidth);
+		subtreeHeight[u] = height[u] + ROW_SEPARATION + childrenHeight;
+	}
+
+	/**
+	 * Place the root's box with its center-top at (x,y), and every other box
+	 * centered under its parent. Breadth-first order places every parent before
+	 * its children, so each node's children are sorted by where they were
+	 * before this arrangement.
+	 *
+	 * @return true if any node moved
+	 */
+	private boolean place(int count, int rootX, int rootY) {
+		boolean modified = false;
+		centerX[order[0]] = rootX;
+		top[order[0]] = rootY;
+		for (int i = 0; i < count; i++) {
+			token.check(i);
+			modified |= placeNode(order[i], sortKeys, sortNodes);
+		}
+		return modified;
+	}
+
+	/**
+	 * Move one node to its target, then sort its children and give each of them
+	 * its target.
+	 *
+	 * @param keys  scratch space for at least as many entries as the node has
+	 *              children
+	 * @param nodes likewise
+	 * @return true if the node moved
+	 */
+	private boolean placeNode(int u, long[] keys, int[] nodes) {
+		boolean moved = false;
+		int newX = centerX[u] - width[u] / 2;
+		int newY = top[u];
+		if (x[u] != newX || y[u] != newY) {
+			moved = true;
+			x[u] = newX;
+			y[u] = newY;
+			nodeAt[u].setX(newX);
+			nodeAt[u].setY(newY);
+		}
+		int k = childCount[u];
+		if (k == 0) {
+			return moved;
+		}
+		sortChildren(firstChild[u], k, keys, nodes);
+		int nextY = newY + height[u] + ROW_SEPARATION;
+		int nextX = centerX[u] - subtreeWidth[u] / 2;
+		int end = firstChild[u] + k;
+		for (int j = firstChild[u]; j < end; j++) {
+			int c = order[j];
+			centerX[c] = nextX + subtreeWidth[c] / 2;
+			top[c] = nextY;
+			nextX += COL_SEPARATION + subtreeWidth[c];
+		}
+		return moved;
+	}
+
+	/**
+	 * Stable sort of <code>order[start, start+k)</code> by x, on keys that hold
+	 * the x in the high half and the original position in the low half.
+	 */
+	private void sortChildren(int start, int k, long[] keys, int[] nodes) {
+		if (k == 1) {
+			return;
+		}
+		for (int j = 0; j < k; j++) {
+			int c = order[start + j];
+			nodes[j] = c;
+			keys[j] = ((long) x[c] << 32) | j;
+		}
+		Arrays.sort(keys, 0, k);
+		for (int j = 0; j < k; j++) {
+			order[start + j] = nodes[(int) keys[j]];
+		}
+	}
+
+	/**
+	 * Set the sides of the edges in <code>[start, end)</code>.
+	 *
+	 * @return true if any edge changed
+	 */
+	private boolean fixEdges(int start, int end) {
+		boolean modified = false;
+		for (int e = start; e < end; e++) {
+			token.check(e);
+			Edge.Side fromSide;
+			Edge.Side toSide;
+			if (edgeKind[e] == CHILD) {
+				fromSide = Edge.Side.bottom;
+				toSide = Edge.Side.top;
+			} else if (edgeKind[e] == BACKLINK) {
+				int from = edgeFrom[e];
+				int to = edgeTo[e];
+				if (x[to] + width[to] / 2 < x[from] + width[from] / 2) {
+					fromSide = Edge.Side.left;
+					toSide = Edge.Side.right;
+				} else {
+					fromSide = Edge.Side.right;
+					toSide = Edge.Side.left;
+				}
+			} else {
+				continue;
+			}
+			Edge edge = edgeAt[e];
+			if (edge.getFromSide() != fromSide || edge.getToSide() != toSide) {
+				modified = true;
+				edge.setFromSide(fromSide);
+				edge.setToSide(toSide);
+			}
+		}
+		return modified;
+	}
+
+	/**
+	 * Count the nodes in every subtree, children before parents.
+	 */
+	private void countSubtrees(int count) {
+		for (int i = 0; i < count; i++) {
+			subtreeSize[order[i]] = 1;
+		}
+		for (int i = count - 1; i > 0; i--) {
+			int u = order[i];
+			subtreeSize[parent[u]] += subtreeSize[u];
+		}
+	}
+
+	/**
+	 * Split the sibling subtrees rooted at <code>order[start, end)</code> into
+	 * runs that each hold about {@link #parallelThreshold} nodes. A subtree at
+	 * least that large is a run of its own.
+	 *
+	 * @return the runs, as pairs of positions in <code>order</code>
+	 */
+	private List<int[]> batches(int start, int end) {
+		List<int[]> runs = new ArrayList<>();
+		int from = start;
+		int nodes = 0;
+		for (int j = start; j < end; j++) {
+			int size = subtreeSize[order[j]];
+			if (size >= parallelThreshold) {
+				if (j > from) {
+					runs.add(new int[] { from, j });
+				}
+				runs.add(new int[] { j, j + 1 });
+				from = j + 1;
+				nodes = 0;
+				continue;
+			}
+			nodes += size;
+			if (nodes >= parallelThreshold) {
+				runs.add(new int[] { from, j + 1 });
+				from = j + 1;
+				nodes = 0;
+			}
+		}
+		if (end > from) {
+			runs.add(new int[] { from, end });
+		}
+		return runs;
+	}
+
+	/**
+	 * @return the nodes of the subtrees rooted at <code>order[from, to)</code>,
+	 *         in breadth-first order
+	 */
+	private int[] subtrees(int from, int to) {
+		int total = 0;
+		for (int j = from; j < to; j++) {
+			total += subtreeSize[order[j]];
+		}
+		int[] nodes = new int[total];
+		int tail = 0;
+		for (int j = from; j < to; j++) {
+			nodes[tail++] = order[j];
+		}
+		for (int head = 0; head < tail; head++) {
+			int u = nodes[head];
+			int end = firstChild[u] + childCount[u];
+			for (int j = firstChild[u]; j < end; j++) {
+				nodes[tail++] = order[j];
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Measure the subtrees rooted at <code>order[from, to)</code>.
+	 */
+	private class Measure extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+
+		Measure(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1 && subtreeSize[order[from]] >= parallelThreshold) {
+				int u = order[from];
+				List<Measure> tasks = new ArrayList<>();
+				for (int[] run : batches(firstChild[u], firstChild[u] + childCount[u])) {
+					tasks.add(new Measure(run[0], run[1]));
+				}
+				invokeAll(tasks);
+				measureNode(u);
+				return;
+			}
+			int[] nodes = subtrees(from, to);
+			for (int i = nodes.length - 1; i >= 0; i--) {
+				token.check(i);
+				measureNode(nodes[i]);
+			}
+		}
+	}
+
+	/**
+	 * Place the subtrees rooted at <code>order[from, to)</code>, whose roots
+	 * already have their targets.
+	 */
+	private class Place extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+
+		Place(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Boolean compute() {
+			if (to - from == 1 && subtreeSize[order[from]] >= parallelThreshold) {
+				int u = order[from];
+				int k = childCount[u];
+				boolean modified = placeNode(u, new long[k], new int[k]);
+				List<Place> tasks = new ArrayList<>();
+				for (int[] run : batches(firstChild[u], firstChild[u] + k)) {
+					tasks.add(new Place(run[0], run[1]));
+				}
+				for (Place task : ForkJoinTask.invokeAll(tasks)) {
+					modified |= task.join();
+				}
+				return modified;
+			}
+			// Breadth-first, so that each node is placed before its children.
+			int[] nodes = subtrees(from, to);
+			long[] keys = new long[nodes.length];
+			int[] scratch = new int[nodes.length];
+			boolean modified = false;
+			for (int i = 0; i < nodes.length; i++) {
+				token.check(i);
+				modified |= placeNode(nodes[i], keys, scratch);
+			}
+			return modified;
+		}
+	}
+
+	/**
+	 * Set the sides of the edges in <code>[from, to)</code>.
+	 */
+	private class FixEdges extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+
+		FixEdges(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Boolean compute() {
+			if (to - from <= parallelThreshold) {
+				return fixEdges(from, to);
+			}
+			int mid = (from + to) >>> 1;
+			FixEdges left = new FixEdges(from, mid);
+			left.fork();
+			boolean modified = new FixEdges(mid, to).compute();
+			return left.join() | modified;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Arranges a set of canvases once and exits:
+ * <code>CanvasArranger --batch &lt;vault or canvas&gt;...</code>. Each canvas
+ * goes through one cycle (load, commands, arrange, save) on a fixed pool of
+ * <code>canvasarranger.threads</code> workers (default: one per processor),
+ * and a line per canvas with its time and outcome is printed at the end.
+ * <p>
+ * As with {@link VaultDaemon}, the canvases found under a vault are only
+ * arranged if they opt in; canvases named on the command line always are.
+ * The exit status is {@link #OK} if every canvas was loaded and, where it
+ * needed to be, saved; {@link #FAILED} if any was not; and {@link #USAGE} if
+ * there was nothing to arrange.
+ */
+public class BatchArranger {
+
+	public static final int OK = 0;
+	public static final int FAILED = 1;
+	public static final int USAGE = 2;
+
+	private BatchArranger() {
+	}
+
+	/**
+	 * @param args vaults and canvases
+	 * @return the exit status
+	 */
+	public static int run(List<String> args) throws InterruptedException {
+		// Each canvas, and whether it must opt in to be arranged.
+		Map<Path, Boolean> canvases = new LinkedHashMap<>();
+		boolean missing = false;
+		for (String arg : args) {
+			Path path = Paths.get(arg).toAbsolutePath().normalize();
+			if (Files.isDirectory(path)) {
+				try {
+					findCanvases(path, canvases);
+				} catch (IOException e) {
+					System.err.println("Failed to scan the vault " + path + ": " + e);
+					missing = true;
+				}
+			} else if (Files.isRegularFile(path)) {
+				canvases.put(path, Boolean.FALSE);
+			} else {
+				System.err.println("No such canvas or vault: " + arg);
+				missing = true;
+			}
+		}
+		if (canvases.isEmpty()) {
+			System.err.println("Usage: CanvasArranger --batch <vault or canvas>...");
+			return USAGE;
+		}
+
+		int threads = Math.max(1,
+				Integer.getInteger("canvasarranger.threads", Runtime.getRuntime().availableProcessors()));
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		List<Future<Result>> futures = new ArrayList<>();
+		for (Map.Entry<Path, Boolean> e : canvases.entrySet()) {
+			futures.add(workers.submit(() -> arrange(e.getKey(), e.getValue())));
+		}
+		workers.shutdown();
+		List<Result> results = new ArrayList<>();
+		for (Future<Result> f : futures) {
+			try {
+				results.add(f.get());
+			} catch (ExecutionException e) {
+				// arrange() catches everything it can recover from.
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		int written = 0;
+		int failed = 0;
+		long busy = 0;
+		System.out.println();
+		for (Result r : results) {
+			System.out.println(String.format("%10.1f ms  %-22s %s", r.nanos / 1e6, r.outcome, r.path));
+			busy += r.nanos;
+			if (r.failed) {
+				failed++;
+			} else if (r.outcome.equals("written")) {
+				written++;
+			}
+		}
+		System.out.println(String.format("%d canvases, %d written, %d failed, in %.1f s on %d threads (%.1f s of work).",
+				results.size(), written, failed, elapsed / 1e9, threads, busy / 1e9));
+		return failed > 0 || missing ? FAILED : OK;
+	}
+
+	/**
+	 * Add every canvas under <code>vault</code>, outside hidden directories,
+	 * that is not already listed.
+	 */
+	private static void findCanvases(Path vault, Map<Path, Boolean> canvases) throws IOException {
+		Files.walkFileTree(vault, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if (!dir.equals(vault) && VaultDaemon.isHidden(dir)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && VaultDaemon.isCanvas(file)) {
+					canvases.putIfAbsent(file, Boolean.TRUE);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.err.println("Cannot read " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static Result arrange(Path path, boolean requireOptIn) {
+		long start = System.nanoTime();
+		String outcome;
+		CanvasArranger arranger = null;
+		try {
+			arranger = new CanvasArranger(path.toString());
+			arranger.setRequireOptIn(requireOptIn);
+			arranger.update();
+			outcome = arranger.getLastOutcome();
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to arrange " + path + ":");
+			e.printStackTrace();
+			outcome = null;
+		} finally {
+			if (arranger != null) {
+				arranger.close();
+			}
+		}
+		boolean failed = outcome == null || outcome.equals("load failed") || outcome.equals("save failed");
+		return new Result(path, System.nanoTime() - start, outcome == null ? "failed" : outcome, failed);
+	}
+
+	private static class Result {
+		final Path path;
+		final long nanos;
+		final String outcome;
+		final boolean failed;
+
+		Result(Path path, long nanos, String outcome, boolean failed) {
+			this.path = path;
+			this.nanos = nanos;
+			this.outcome = outcome;
+			this.failed = failed;
+		}
+	}
+}
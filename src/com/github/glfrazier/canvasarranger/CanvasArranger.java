@@ -1,31 +1,47 @@
 package com.github.glfrazier.canvasarranger;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
 
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonReader;
-import javax.json.JsonValue;
-import javax.json.JsonWriter;
-import javax.json.JsonWriterFactory;
+import javax.json.JsonException;
 import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+
+import com.github.glfrazier.canvasarranger.CanvasMetrics.Counter;
+import com.github.glfrazier.canvasarranger.CanvasMetrics.Phase;
 
 public class CanvasArranger implements Runnable {
 
@@ -37,11 +53,103 @@ public class CanvasArranger implements Runnable {
 	private String rootNodeID;
 
 	private Map<String, Edge> edges;
+	/** The edges leaving each node, keyed by the node's ID; rebuilt on each load. */
+	private Map<String, List<Edge>> outgoingEdges;
 	private Map<String, Annotation> annotations;
 	private long modTime;
 	private boolean showAnnotations;
 	private boolean pendingExit;
 	private Node annotationsNode;
+	/** Fingerprints of the canvas as loaded (see {@link LayoutFingerprint}). */
+	private long loadedLayout;
+	private long loadedPositions;
+	/** Fingerprints of the canvas as we last left it, arranged. */
+	private long arrangedLayout;
+	private long arrangedPositions;
+	/** The canvas as we last wrote it, so that our own saves are not processed again. */
+	private WriteSignature lastWrite;
+	/**
+	 * The canvas as it was last left settled: as we wrote it, or as it was last
+	 * found to need nothing. Restored from the {@link LayoutCache} on the first
+	 * cycle.
+	 */
+	private WriteSignature settled;
+	private LayoutCache cache;
+	private boolean cacheRestored;
+	/**
+	 * What the last cycle did: <code>written</code>, or why it did not write
+	 * the canvas; null if it failed.
+	 */
+	private volatile String lastOutcome;
+	/** The version being arranged, while a cycle is running. */
+	private volatile CycleToken currentCycle;
+	private final CanvasMetrics metrics;
+	/** Kept from cycle to cycle so that small edits are laid out incrementally. */
+	private LayoutEngine arranger;
+	private String engineName;
+	/**
+	 * The layout named in the canvas's annotations, one of {@link #LAYOUTS}, or
+	 * null for the default.
+	 */
+	private String layout;
+	/**
+	 * Whether every connected component is arranged and packed (see
+	 * {@link ForestArranger}), rather than just the root's hierarchy.
+	 */
+	private boolean forest;
+	private boolean annotated;
+	private boolean requireOptIn;
+
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final JsonGeneratorFactory PRETTY_GENERATORS = Json
+			.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true));
+	private static final JsonGeneratorFactory COMPACT_GENERATORS = Json
+			.createGeneratorFactory(Collections.<String, Object>emptyMap());
+	/**
+	 * Whether the whole canvas is written one entry per line, as Obsidian writes
+	 * it, rather than on one line; true unless
+	 * <code>canvasarranger.pretty</code> is false.
+	 */
+	private static final boolean PRETTY = Boolean
+			.parseBoolean(System.getProperty("canvasarranger.pretty", "true"));
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Canvases of at least <code>canvasarranger.mapThreshold</code> bytes
+	 * (default 1 MiB) are memory-mapped and prescanned (see
+	 * {@link CanvasPrescan}) before they are parsed. Not on Windows, where a
+	 * mapped file cannot be replaced until the mapping is collected.
+	 */
+	private static final long MAP_THRESHOLD = System.getProperty("os.name", "").startsWith("Windows")
+			? Long.MAX_VALUE
+			: Long.getLong("canvasarranger.mapThreshold", 1 << 20);
+	private static final boolean PATCH_SAVES = !"rewrite".equals(System.getProperty("canvasarranger.saveMode"));
+	/**
+	 * What a <code>&lt;ca layout=...&gt;</code> command may ask for:
+	 * <code>boxes</code>, where each subtree has a box as wide as its widest
+	 * level, <code>tidy</code> (see {@link TidyArranger}) or
+	 * <code>layered</code> (see {@link LayeredArranger}).
+	 */
+	static final List<String> LAYOUTS = List.of("boxes", "tidy", "layered");
+	/**
+	 * The engine for canvases that do not name a layout:
+	 * <code>canvasarranger.engine</code>, which is <code>objects</code> (the
+	 * default), <code>arrays</code>, <code>tidy</code> or <code>layered</code>.
+	 */
+	private static final String DEFAULT_ENGINE = defaultEngine();
+	private static final String FOREST_SUFFIX = "+forest";
+
+	/** The bytes of the canvas as last loaded; saves patch these. */
+	private byte[] source;
+	/** The IDs of loaded nodes that have since been removed (command cards). */
+	private Set<String> removedNodeIDs;
+	/**
+	 * The loaded entries that the model cannot hold, in the order they were
+	 * loaded in; a rewrite copies them back as they were.
+	 */
+	private List<RawEntry> skippedNodes;
+	private List<RawEntry> skippedEdges;
+	private static final int[] NO_VALUES = RawEntry.noValues(0);
+	private static final byte[][] NO_REPLACEMENTS = new byte[0][];
 
 	public CanvasArranger(String filename) throws IOException {
 		canvasFileName = filename;
@@ -50,215 +158,1072 @@ public class CanvasArranger implements Runnable {
 		showAnnotations = false;
 		nodes = new HashMap<String, Node>();
 		nodeOrdering = new LinkedList<String>();
-		edges = new HashMap<String, Edge>();
+		edges = new LinkedHashMap<String, Edge>();
+		outgoingEdges = new HashMap<String, List<Edge>>();
+		removedNodeIDs = new HashSet<String>();
+		skippedNodes = new ArrayList<RawEntry>();
+		skippedEdges = new ArrayList<RawEntry>();
+		metrics = CanvasMetrics.open(canvasFile);
+		selectEngine();
+	}
+
+	private static String defaultEngine() {
+		String name = System.getProperty("canvasarranger.engine", "objects");
+		try {
+			LayoutEngine.create(name);
+			return name;
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "; using the default.");
+			return "objects";
+		}
 	}
 
-	private synchronized boolean loadCanvas() {
+	/**
+	 * Switch to the engine for the canvas's layout and forest setting, unless it
+	 * is already the one in use.
+	 * 
+	 * @return true if the engine changed, so that the canvas must be arranged
+	 *         again even if its layout has not; whether it is then written
+	 *         depends only on what the arrangement moves
+	 */
+	private boolean selectEngine() {
+		String name = DEFAULT_ENGINE;
+		if ("tidy".equals(layout) || "layered".equals(layout)) {
+			name = layout;
+		} else if ("boxes".equals(layout) && (name.equals("tidy") || name.equals("layered"))) {
+			name = "objects";
+		}
+		return useEngine(forest ? name + FOREST_SUFFIX : name);
+	}
+
+	/**
+	 * @param engine the name of a {@link LayoutEngine}, followed by
+	 *               {@value #FOREST_SUFFIX} for a {@link ForestArranger} around
+	 *               it
+	 * @return true if the engine changed
+	 * @throws IllegalArgumentException if there is no engine of that name
+	 */
+	private boolean useEngine(String engine) {
+		if (engine.equals(engineName)) {
+			return false;
+		}
+		if (engine.endsWith(FOREST_SUFFIX)) {
+			String inner = engine.substring(0, engine.length() - FOREST_SUFFIX.length());
+			// Fail now, not on the first arrangement, if there is no such engine.
+			LayoutEngine.create(inner);
+			arranger = new ForestArranger(() -> LayoutEngine.create(inner));
+		} else {
+			arranger = LayoutEngine.create(engine);
+		}
+		arranger.setMetrics(metrics);
+		engineName = engine;
+		return true;
+	}
+
+	/**
+	 * Load the canvas. A canvas that cannot be parsed (for example because it is
+	 * being written right now) is reported by exception; the caller should wait
+	 * for the next change rather than retry.
+	 * 
+	 * @param content the content of the canvas if it has already been read, or
+	 *                null to read it
+	 * @return true if loading changed the canvas's annotations
+	 * @throws IOException   if the canvas cannot be read
+	 * @throws JsonException if the canvas cannot be parsed
+	 */
+	synchronized boolean loadCanvas(byte[] content) throws IOException {
 		boolean modified = false;
-		Throwable badparse = null;
-		for (int i = 0; i < 20; i++) {
-			try {
-				nodes.clear();
-				nodeOrdering.clear();
-				edges.clear();
-				if (canvasFile.length() == 0) {
-					return false;
-				}
-				Path cPath = canvasFile.toPath();
-				byte[] buffer = Files.readAllBytes(cPath);
-				ByteArrayInputStream in = new ByteArrayInputStream(buffer);
-				JsonReader reader = Json.createReader(in);
-				JsonObject content = reader.readObject();
-				reader.close();
-				in.close();
-
-				JsonArray nodeList = content.getJsonArray("nodes");
-				parseNodeList(nodeList);
-				JsonArray edgeList = content.getJsonArray("edges");
-				parseEdgeList(edgeList);
-				JsonObject annotations = content.getJsonObject("annotations");
-				parseAnnotations(annotations);
-				if (rootNodeID != null && !nodes.containsKey(rootNodeID)) {
-					rootNodeID = null;
-					modified = true;
-				}
-				if (rootNodeID == null) {
-					if (!nodeOrdering.isEmpty()) {
-						rootNodeID = nodeOrdering.get(0);
-						modified = true;
-					}
-				}
-				return modified;
-			} catch (Throwable t) {
-				badparse = t;
+		nodes.clear();
+		nodeOrdering.clear();
+		edges.clear();
+		outgoingEdges.clear();
+		removedNodeIDs.clear();
+		skippedNodes.clear();
+		skippedEdges.clear();
+		source = null;
+		annotated = false;
+		modTime = 0;
+		rootNodeID = null;
+		layout = null;
+		forest = false;
+		CanvasEvents.Load event = new CanvasEvents.Load();
+		event.begin();
+		long start = System.nanoTime();
+		if (content == null) {
+			content = Files.readAllBytes(canvasFile.toPath());
+			metrics.record(Phase.read, System.nanoTime() - start);
+			start = System.nanoTime();
+		}
+		source = content;
+		event.canvas = canvasFileName;
+		event.bytesRead = content.length;
+		if (source.length == 0) {
+			source = null;
+			event.commit();
+			return false;
+		}
+		try {
+			parseCanvas(new JsonScanner(source));
+		} catch (IllegalArgumentException e) {
+			// Leave nothing half-loaded behind.
+			unloadCanvas();
+			throw new JsonException("Malformed canvas: " + e.getMessage(), e);
+		}
+		indexEdges();
+		if (!annotated) {
+			System.err.println("Annotations do not include modification time.");
+		}
+		System.out.println("Parsed annotations, root = " + rootNodeID);
+		if (rootNodeID != null && !nodes.containsKey(rootNodeID)) {
+			rootNodeID = null;
+			modified = true;
+		}
+		if (rootNodeID == null) {
+			rootNodeID = defaultRoot();
+			if (rootNodeID != null) {
+				modified = true;
 			}
-			try {
-				Thread.sleep(20);
-			} catch (InterruptedException e) {
-				break;
+		}
+		loadedLayout = LayoutFingerprint.layout(rootNodeID, nodes.values(), edges.values());
+		loadedPositions = LayoutFingerprint.positions(nodes.values(), edges.values());
+		metrics.record(Phase.parse, System.nanoTime() - start);
+		metrics.setSize(nodes.size(), edges.size());
+		event.nodes = nodes.size();
+		event.edges = edges.size();
+		event.commit();
+		return modified;
+	}
+
+	/**
+	 * @return the first node on the canvas that is not a group, or null
+	 */
+	private String defaultRoot() {
+		for (String id : nodeOrdering) {
+			if (!nodes.get(id).isGroup()) {
+				return id;
 			}
 		}
-		System.err.println("Failed to load the canvas 20 times:");
-		badparse.printStackTrace();
-		System.exit(-1);
-		// Unreachable, but it makes Eclipse happy.
-		return false;
+		return null;
 	}
 
 	/**
-	 * Create the Json object that represents the arranged canvas, write the Json to
-	 * a temp file. If the last-modified time for the canvas file is unchanged
-	 * (i.e., there are no new modifications), copy the temp file over the canvas
-	 * file and then update the <code>modTime</code>. If the canvas file has
-	 * changed, we simply discard the write.
+	 * Write the arranged canvas to a temp file next to the canvas file, then
+	 * rename it over the canvas file, so that Obsidian never sees a half-written
+	 * canvas.
+	 * <p>
+	 * Unless <code>canvasarranger.saveMode</code> is <code>rewrite</code>, the
+	 * canvas is produced by patching the bytes it was loaded from (see
+	 * {@link CanvasPatcher}): only the values that changed are rewritten, and the
+	 * order and formatting of everything else is preserved. If the loaded bytes
+	 * cannot be patched, the whole canvas is serialized from the model instead.
 	 * 
 	 * @param t the modification time of the canvas that is being arranged
 	 * @throws IOException
 	 */
 	private synchronized void saveCanvas(long t) throws IOException {
-		JsonObjectBuilder canvasBuilder = Json.createObjectBuilder();
-		JsonArray nodes = buildNodeArray();
-		canvasBuilder.add("nodes", nodes);
-		JsonArray edges = buildEdgeArray();
-		canvasBuilder.add("edges", edges);
-		long oldModTime = modTime;
-		modTime = t;
-		JsonObject annotations = buildAnnotationsObject();
-		modTime = oldModTime;
-		canvasBuilder.add("annotations", annotations);
-
-		Map<String, Boolean> config = new HashMap<>();
-		config.put(JsonGenerator.PRETTY_PRINTING, true);
-		JsonWriterFactory writerFactory = Json.createWriterFactory(config);
-
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		JsonWriter writer = writerFactory.createWriter(bout);
-		writer.write(canvasBuilder.build());
-		writer.close();
-		byte[] buffer = bout.toByteArray();
-//		File tmpfile = File.createTempFile("canvas", ".json");
-//		FileOutputStream out = new FileOutputStream(tmpfile);
-//		out.write(buffer);
-//		out.close();
-//		Path srcPath = tmpfile.toPath();
-		Path dstPath = canvasFile.toPath();
-		Files.write(dstPath, buffer);
-//		tmpfile.delete();
-	}
-
-	private JsonObject buildAnnotationsObject() {
-		JsonObjectBuilder builder = Json.createObjectBuilder();
-		builder.add("modified", modTime);
+		CanvasEvents.Save event = new CanvasEvents.Save();
+		event.begin();
+		publish(canvasWriter(t, PATCH_SAVES));
+		event.canvas = canvasFileName;
+		event.bytesWritten = lastWrite.getSize();
+		event.commit();
+	}
+
+	/**
+	 * @param t     the modification time of the canvas that is being arranged
+	 * @param patch true to patch the bytes the canvas was loaded from, if they
+	 *              can be patched
+	 * @return something that writes the canvas as it now stands
+	 */
+	synchronized CanvasWriter canvasWriter(long t, boolean patch) {
+		if (patch && source != null) {
+			CanvasPatcher patcher = new CanvasPatcher(source);
+			try {
+				patcher.plan(nodes, removedNodeIDs, edges, annotationsText(COMPACT_GENERATORS, t));
+				System.out.println("Patching " + patcher.getEditCount() + " values.");
+				return patcher::writeTo;
+			} catch (IllegalArgumentException e) {
+				System.err.println("Cannot patch the canvas (" + e.getMessage() + "); rewriting it.");
+			}
+		}
+		return out -> writeCanvas(out, t);
+	}
+
+	/**
+	 * Serialize the whole canvas, entry by entry. A loaded entry is copied from
+	 * the bytes it was loaded from, with only the values the arranger changes
+	 * replaced (see {@link Node#writeRaw(OutputStream)}); any other is streamed
+	 * through a generator. Nodes are written in the order they were loaded in.
+	 * Entries that the model could not hold are copied back unchanged, each
+	 * before the first loaded entry that followed it.
+	 */
+	private void writeCanvas(OutputStream out, long t) throws IOException {
+		String indent = PRETTY ? "\n\t" : "";
+		byte[] first = utf8(PRETTY ? "\n\t\t" : "");
+		byte[] next = utf8(PRETTY ? ",\n\t\t" : ",");
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		out.write(utf8("{" + indent + "\"nodes\":["));
+		int written = 0;
+		int skipped = 0;
+		for (String id : nodeOrdering) {
+			Node n = nodes.get(id);
+			while (n.raw != null && skipped < skippedNodes.size()
+					&& skippedNodes.get(skipped).getStart() < n.raw.getStart()) {
+				out.write(written++ == 0 ? first : next);
+				skippedNodes.get(skipped++).writeTo(out, NO_REPLACEMENTS);
+			}
+			out.write(written++ == 0 ? first : next);
+			if (!n.writeRaw(out)) {
+				writeEntry(out, entry, n::write);
+			}
+		}
+		for (; skipped < skippedNodes.size(); skipped++) {
+			out.write(written++ == 0 ? first : next);
+			skippedNodes.get(skipped).writeTo(out, NO_REPLACEMENTS);
+		}
+		out.write(utf8(indent + "]," + indent + "\"edges\":["));
+		written = 0;
+		skipped = 0;
+		for (Edge e : edges.values()) {
+			while (e.raw != null && skipped < skippedEdges.size()
+					&& skippedEdges.get(skipped).getStart() < e.raw.getStart()) {
+				out.write(written++ == 0 ? first : next);
+				skippedEdges.get(skipped++).writeTo(out, NO_REPLACEMENTS);
+			}
+			out.write(written++ == 0 ? first : next);
+			if (!e.writeRaw(out)) {
+				writeEntry(out, entry, e::write);
+			}
+		}
+		for (; skipped < skippedEdges.size(); skipped++) {
+			out.write(written++ == 0 ? first : next);
+			skippedEdges.get(skipped).writeTo(out, NO_REPLACEMENTS);
+		}
+		out.write(utf8(indent + "]," + indent + "\"annotations\":" + annotationsText(COMPACT_GENERATORS, t)
+				+ (PRETTY ? "\n}" : "}")));
+	}
+
+	/**
+	 * Write one entry, on one line, through a generator. The generator writes
+	 * into <code>buffer</code>, so that finishing it does not flush
+	 * <code>out</code>.
+	 */
+	private static void writeEntry(OutputStream out, ByteArrayOutputStream buffer, Consumer<JsonGenerator> entry)
+			throws IOException {
+		buffer.reset();
+		JsonGenerator g = COMPACT_GENERATORS.createGenerator(buffer);
+		entry.accept(g);
+		g.close();
+		buffer.writeTo(out);
+	}
+
+	private static byte[] utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	interface CanvasWriter {
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Write a new version of the canvas to a temp file in the same directory and
+	 * atomically rename it over the canvas file.
+	 */
+	private void publish(CanvasWriter writer) throws IOException {
+		long size;
+		long hash;
+		Path dstPath = canvasFile.toPath().toAbsolutePath();
+		Path tmpPath = dstPath.resolveSibling("." + dstPath.getFileName() + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+					CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel),
+							new CRC32C());
+					OutputStream out = new BufferedOutputStream(checked, WRITE_BUFFER_SIZE)) {
+				writer.writeTo(out);
+				out.flush();
+				size = channel.size();
+				hash = checked.getChecksum().getValue();
+			}
+			try {
+				Files.move(tmpPath, dstPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpPath, dstPath, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmpPath);
+		}
+		// If the canvas is no longer the size we wrote, someone has written it since
+		// the rename and its modification time is theirs.
+		long t = canvasFile.lastModified();
+		lastWrite = new WriteSignature(size, canvasFile.length() == size ? t : -1, hash);
+		if (lastWrite.getModified() != -1) {
+			modTime = t;
+		}
+	}
+
+	/**
+	 * Write the fields of the annotations object, which records the version of
+	 * the canvas that was arranged, the root of the arrangement and the layout
+	 * the canvas asked for.
+	 * 
+	 * @param t the modification time of the canvas that is being arranged
+	 */
+	private void writeAnnotationFields(JsonGenerator g, long t) {
+		g.write("modified", t);
 		if (rootNodeID != null) {
-			builder.add("root", rootNodeID);
+			g.write("root", rootNodeID);
 			System.out.println("building annotations obj, root= " + rootNodeID);
 		}
-		return builder.build();
+		if (layout != null) {
+			g.write("layout", layout);
+		}
+		if (forest) {
+			g.write("forest", true);
+		}
 	}
 
-	private JsonArray buildEdgeArray() {
-		JsonArrayBuilder builder = Json.createArrayBuilder();
-		for (Edge e : edges.values()) {
-			builder.add(e.toJson());
+	private String annotationsText(JsonGeneratorFactory factory, long t) {
+		StringWriter text = new StringWriter();
+		JsonGenerator g = factory.createGenerator(text);
+		g.writeStartObject();
+		writeAnnotationFields(g, t);
+		g.writeEnd();
+		g.close();
+		return text.toString();
+	}
+
+	/**
+	 * Fill <code>nodes</code>, <code>nodeOrdering</code> and <code>edges</code>
+	 * by scanning the source's bytes. Only the fields the arranger uses are
+	 * decoded; each entry keeps a {@link RawEntry} for everything else, and the
+	 * text of a card is only decoded if it is asked for.
+	 */
+	private void parseCanvas(JsonScanner s) {
+		s.expect('{');
+		if (s.consume('}')) {
+			return;
 		}
-		return builder.build();
+		do {
+			String key = s.readString();
+			s.expect(':');
+			byte value = s.peek();
+			if (key.equals("nodes") && value == '[') {
+				parseNodeList(s);
+			} else if (key.equals("edges") && value == '[') {
+				parseEdgeList(s);
+			} else if (key.equals("annotations") && value == '{') {
+				parseAnnotations(s);
+			} else {
+				s.skipValue();
+			}
+		} while (s.consume(','));
+		s.expect('}');
 	}
 
-	private JsonArray buildNodeArray() {
-		JsonArrayBuilder builder = Json.createArrayBuilder();
-		for (Node n : nodes.values()) {
-			builder.add(n.toJson());
+	private void indexEdges() {
+		for (Edge e : edges.values()) {
+			outgoingEdges.computeIfAbsent(e.getFromNode(), k -> new ArrayList<Edge>()).add(e);
 		}
-		return builder.build();
 	}
 
-	private void parseAnnotations(JsonObject annotations) {
-		try {
-			modTime = annotations.getInt("modified");
-		} catch (NullPointerException e) {
-			System.err.println("Annotations do not include modification time.");
-			modTime = 0;
+	private void parseAnnotations(JsonScanner s) {
+		annotated = true;
+		boolean sawModified = false;
+		s.expect('{');
+		if (!s.consume('}')) {
+			do {
+				String key = s.readString();
+				s.expect(':');
+				byte value = s.peek();
+				if (key.equals("modified") && (value == '-' || value >= '0' && value <= '9')) {
+					modTime = s.readLong();
+					sawModified = true;
+				} else if (key.equals("root") && value == '"') {
+					rootNodeID = s.readString();
+				} else if (key.equals("layout") && value == '"') {
+					String l = s.readString();
+					if (LAYOUTS.contains(l)) {
+						layout = l;
+					}
+				} else if (key.equals("forest") && (value == 't' || value == 'f')) {
+					int start = s.skipValue();
+					forest = s.regionEquals(start, s.position(), TRUE);
+				} else {
+					s.skipValue();
+				}
+			} while (s.consume(','));
+			s.expect('}');
 		}
-		try {
-			rootNodeID = annotations.getString("root");
-		} catch (NullPointerException e) {
-			rootNodeID = null;
+		if (!sawModified) {
+			System.err.println("Annotations do not include modification time.");
 		}
-		System.out.println("Parsed annotations, root = " + rootNodeID);
 	}
 
-	private void parseEdgeList(JsonArray edgeList) {
-		for (JsonValue entry : edgeList) {
-			JsonObject jEdge = entry.asJsonObject();
+	private void parseEdgeList(JsonScanner s) {
+		s.expect('[');
+		if (s.consume(']')) {
+			return;
+		}
+		do {
+			s.skipWhitespace();
+			int start = s.position();
+			if (s.peek() != '{') {
+				s.skipValue();
+				skippedEdges.add(new RawEntry(source, start, s.position(), NO_VALUES));
+				continue;
+			}
 			try {
-				Edge e = new Edge(jEdge);
+				Edge e = parseEdge(s);
 				edges.put(e.toString(), e);
 			} catch (IllegalArgumentException e) {
+				// Skip the entry, but keep it to write back; if it is not even well
+				// formed, this throws again.
+				s.position(start);
+				s.skipValue();
+				skippedEdges.add(new RawEntry(source, start, s.position(), NO_VALUES));
 				System.err.println("Canvas contains an illegal edge entry: " + e);
 			}
+		} while (s.consume(','));
+		s.expect(']');
+	}
+
+	/**
+	 * Parse one edge, decoding only its ID, its ends and its sides. The scanner
+	 * is positioned at the edge's opening brace; on a normal return it is just
+	 * past the closing one.
+	 */
+	private Edge parseEdge(JsonScanner s) {
+		String id = null, fromNode = null, toNode = null, fromSide = null, toSide = null;
+		int start = s.position();
+		int[] values = RawEntry.noValues(Edge.SLOTS);
+		s.expect('{');
+		if (!s.consume('}')) {
+			do {
+				String key = s.readString();
+				s.expect(':');
+				s.skipWhitespace();
+				int from = s.skipValue();
+				int to = s.position();
+				if (source[from] != '"') {
+					continue;
+				}
+				switch (key) {
+				case "id":
+					id = s.decodeString(from, to);
+					break;
+				case "fromNode":
+					fromNode = s.decodeString(from, to);
+					break;
+				case "toNode":
+					toNode = s.decodeString(from, to);
+					break;
+				case "fromSide":
+					fromSide = s.decodeString(from, to);
+					values[2 * Edge.FROM_SIDE] = from;
+					values[2 * Edge.FROM_SIDE + 1] = to;
+					break;
+				case "toSide":
+					toSide = s.decodeString(from, to);
+					values[2 * Edge.TO_SIDE] = from;
+					values[2 * Edge.TO_SIDE + 1] = to;
+					break;
+				}
+			} while (s.consume(','));
+			s.expect('}');
 		}
-		this.edges = edges;
+		require(id, "id");
+		require(fromNode, "fromNode");
+		require(toNode, "toNode");
+		// The sides are optional; the viewer picks them.
+		Edge e = new Edge(id, null, fromNode, toNode, fromSide == null ? null : Edge.Side.valueOf(fromSide),
+				toSide == null ? null : Edge.Side.valueOf(toSide), null, null, null);
+		e.raw = new RawEntry(source, start, s.position(), values);
+		return e;
 	}
 
-	private void parseNodeList(JsonArray nodeList) {
-		for (JsonValue entry : nodeList) {
-			JsonObject jNode = entry.asJsonObject();
+	private void parseNodeList(JsonScanner s) {
+		s.expect('[');
+		if (s.consume(']')) {
+			return;
+		}
+		do {
+			s.skipWhitespace();
+			int start = s.position();
+			if (s.peek() != '{') {
+				s.skipValue();
+				skippedNodes.add(new RawEntry(source, start, s.position(), NO_VALUES));
+				continue;
+			}
 			try {
-				Node n = new Node(jNode);
+				Node n = parseNode(s);
 				nodes.put(n.getID(), n);
 				nodeOrdering.add(n.getID());
 			} catch (IllegalArgumentException e) {
+				// Skip the entry, but keep it to write back; if it is not even well
+				// formed, this throws again.
+				s.position(start);
+				s.skipValue();
+				skippedNodes.add(new RawEntry(source, start, s.position(), NO_VALUES));
 				System.err.println("Canvas contains an illegal node entry: " + e);
 			}
+		} while (s.consume(','));
+		s.expect(']');
+	}
+
+	/**
+	 * Parse one node, decoding only its ID, type, position, size and, for a
+	 * node that is not a card, the content it is named by. Nodes of any type
+	 * are accepted. The scanner is positioned at the node's opening brace; on a
+	 * normal return it is just past the closing one.
+	 */
+	private Node parseNode(JsonScanner s) {
+		String id = null, type = null, file = null, url = null, label = null;
+		Integer x = null, y = null, width = null, height = null;
+		int start = s.position();
+		int[] values = RawEntry.noValues(Node.SLOTS);
+		s.expect('{');
+		if (!s.consume('}')) {
+			do {
+				String key = s.readString();
+				s.expect(':');
+				s.skipWhitespace();
+				int from = s.skipValue();
+				int to = s.position();
+				byte first = source[from];
+				if (first == '"') {
+					switch (key) {
+					case "id":
+						id = s.decodeString(from, to);
+						break;
+					case "type":
+						type = s.decodeString(from, to);
+						break;
+					case "text":
+						values[2 * Node.TEXT] = from;
+						values[2 * Node.TEXT + 1] = to;
+						break;
+					case "file":
+						file = s.decodeString(from, to);
+						break;
+					case "url":
+						url = s.decodeString(from, to);
+						break;
+					case "label":
+						label = s.decodeString(from, to);
+						break;
+					}
+				} else if (first == '-' || first >= '0' && first <= '9') {
+					switch (key) {
+					case "x":
+						x = s.parseInt(from, to);
+						values[2 * Node.X] = from;
+						values[2 * Node.X + 1] = to;
+						break;
+					case "y":
+						y = s.parseInt(from, to);
+						values[2 * Node.Y] = from;
+						values[2 * Node.Y + 1] = to;
+						break;
+					case "width":
+						width = s.parseInt(from, to);
+						break;
+					case "height":
+						height = s.parseInt(from, to);
+						break;
+					}
+				}
+			} while (s.consume(','));
+			s.expect('}');
+		}
+		require(id, "id");
+		require(x, "x");
+		require(y, "y");
+		require(width, "width");
+		require(height, "height");
+		require(type, "type");
+		Node.NodeType nodeType = Node.NodeType.parse(type);
+		String content = null;
+		if (nodeType == Node.NodeType.text) {
+			if (values[2 * Node.TEXT] < 0) {
+				require(null, "text");
+			}
+		} else if (nodeType == Node.NodeType.file) {
+			require(content = file, "file");
+		} else if (nodeType == Node.NodeType.link) {
+			require(content = url, "url");
+		} else if (nodeType == Node.NodeType.group) {
+			content = label;
+		}
+		Node n = new Node(id, null, x, y, width, height, nodeType, content);
+		n.raw = new RawEntry(source, start, s.position(), values);
+		return n;
+	}
+
+	private static void require(Object value, String field) {
+		if (value == null) {
+			throw new IllegalArgumentException("missing \"" + field + "\"");
 		}
-		this.nodes = nodes;
 	}
 
 	@Override
 	public void run() {
 		File f = new File(canvasFileName);
 		modTime = 0;
+		ChangeDetector detector = new ChangeDetector(f);
+		ChangeScheduler scheduler = new ChangeScheduler();
 		while (!pendingExit) {
-			long t = f.lastModified();
-			if (t != modTime) {
-				System.out.println("\nCustom loop: file changed.");
-				boolean modified = loadCanvas();
-				System.out.println("loadCanvas returned " + modified);
-				modified |= processCommands();
-				Arranger arranger = null;
-				if (rootNodeID != null) {
-					Node root = nodes.get(rootNodeID);
-					if (root == null) {
-						System.err.println("rootNodeID=" + rootNodeID + " but root=" + root);
-						System.err.println("nodes:");
-						for (String id : nodes.keySet()) {
-							System.err.println("  " + id + ": " + nodes.get(id));
-						}
-						System.err.println("Node ordering: ");
-						for (String id : nodeOrdering) {
-							System.err.println("  " + id);
-						}
-						System.exit(-1);
+			try {
+				detector.awaitChange(modTime);
+				scheduler.changed(System.nanoTime());
+				long delay;
+				while ((delay = scheduler.delayMillis(System.nanoTime(), f.length(), f.lastModified())) > 0) {
+					if (detector.awaitEvent(delay)) {
+						scheduler.changed(System.nanoTime());
 					}
-					arranger = new Arranger(nodes.get(rootNodeID), nodes, edges);
 				}
-				if (arranger != null) {
-					modified |= arranger.arrange();
+			} catch (InterruptedException e) {
+				break;
+			}
+			long t = f.lastModified();
+			if (t == modTime) {
+				// The burst ended where it started.
+				continue;
+			}
+			System.out.println("\nCustom loop: file changed.");
+			cycle(t);
+		}
+		detector.close();
+		System.out.println("Exiting per your request.");
+
+	}
+
+	/**
+	 * Run one load/arrange/save cycle if the canvas has changed since the last
+	 * one. This is the entry point used when a {@link VaultDaemon} owns the
+	 * scheduling; the model is released afterwards so that an idle canvas holds
+	 * no nodes or edges.
+	 * 
+	 * @return true if a cycle was run
+	 */
+	synchronized boolean update() {
+		long t = canvasFile.lastModified();
+		if (t == modTime) {
+			return false;
+		}
+		System.out.println("\n" + canvasFileName + " changed.");
+		cycle(t);
+		unloadCanvas();
+		return true;
+	}
+
+	/**
+	 * Called when a change to the canvas is seen: if a cycle is running for an
+	 * older version, it stops at its next check instead of waiting for its
+	 * next look at the canvas.
+	 */
+	void abandonIfSuperseded() {
+		CycleToken token = currentCycle;
+		if (token != null && token.isSuperseded()) {
+			token.cancel();
+		}
+	}
+
+	/**
+	 * Load the canvas, process any commands in it, arrange it and, if anything
+	 * moved, write it back. The cycle is abandoned as soon as it sees that the
+	 * canvas has been modified again.
+	 * 
+	 * @param t the modification time of the canvas that is being arranged
+	 */
+	private void cycle(long t) {
+		CanvasEvents.Cycle event = new CanvasEvents.Cycle();
+		event.begin();
+		CycleToken token = new CycleToken(canvasFile, t);
+		currentCycle = token;
+		lastOutcome = null;
+		try {
+			cycle(t, event, token);
+			lastOutcome = event.skipReason == null ? "written" : event.skipReason;
+		} catch (CancellationException e) {
+			// The newer version gets a cycle of its own.
+			System.out.println("Abandoned the cycle: " + e.getMessage());
+			metrics.increment(Counter.cancelledCycles);
+			event.skipReason = "superseded";
+			lastOutcome = event.skipReason;
+		} finally {
+			currentCycle = null;
+			event.canvas = canvasFileName;
+			event.nodes = nodes.size();
+			event.edges = edges.size();
+			event.commit();
+		}
+	}
+
+	/**
+	 * The body of {@link #cycle(long)}, which fills in what <code>event</code>
+	 * reports about the cycle as it goes.
+	 * 
+	 * @throws CancellationException if the canvas is modified again before the
+	 *                               cycle is done with it
+	 */
+	private void cycle(long t, CanvasEvents.Cycle event, CycleToken token) {
+		metrics.increment(Counter.cycles);
+		metrics.record(Phase.detect, TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - t)));
+		boolean modified;
+		long checksum = -1;
+		try {
+			byte[] content = null;
+			if (lastWrite != null && lastWrite.matches(canvasFile, t)) {
+				event.skipReason = "own write";
+				ignoreOwnWrite(t);
+				return;
+			}
+			if (!cacheRestored) {
+				restoreFromCache();
+			}
+			if (settled != null && settled.matches(canvasFile, t)) {
+				skipUnchanged(event, t);
+				return;
+			}
+			if (canvasFile.length() >= MAP_THRESHOLD) {
+				long start = System.nanoTime();
+				CanvasPrescan scan = CanvasPrescan.map(canvasFile.toPath());
+				metrics.record(Phase.prescan, System.nanoTime() - start);
+				checksum = scan.getChecksum();
+				if (lastWrite != null && lastWrite.matches(scan)) {
+					metrics.increment(Counter.prescanSkips);
+					event.skipReason = "own write";
+					ignoreOwnWrite(t);
+					return;
 				}
-				if (modified && f.lastModified() == t) {
-					try {
-						saveCanvas(t);
-					} catch (IOException e) {
-						System.err.println("Failed to update the canvas: " + e);
-					}
-				} else {
+				if (requireOptIn && !scan.isAnnotated() && !scan.hasCommands()) {
+					metrics.increment(Counter.prescanSkips);
+					metrics.increment(Counter.skippedWrites);
+					event.skipReason = "not opted in";
+					settle(new WriteSignature(scan.getSize(), canvasFile.lastModified() == t ? t : -1, checksum),
+							false);
 					modTime = t;
+					return;
+				}
+				if (settled != null && settled.matches(scan)) {
+					metrics.increment(Counter.prescanSkips);
+					skipUnchanged(event, t);
+					return;
+				}
+				start = System.nanoTime();
+				content = scan.content();
+				metrics.record(Phase.read, System.nanoTime() - start);
+				event.bytesRead = content.length;
+			} else if (lastWrite != null && lastWrite.mayMatch(canvasFile)
+					|| settled != null && settled.mayMatch(canvasFile)) {
+				long start = System.nanoTime();
+				content = Files.readAllBytes(canvasFile.toPath());
+				metrics.record(Phase.read, System.nanoTime() - start);
+				event.bytesRead = content.length;
+				if (lastWrite != null && lastWrite.matches(content)) {
+					event.skipReason = "own write";
+					ignoreOwnWrite(t);
+					return;
 				}
+				if (settled != null && settled.matches(content)) {
+					skipUnchanged(event, t);
+					return;
+				}
+			}
+			modified = loadCanvas(content);
+			event.bytesRead = source == null ? 0 : source.length;
+		} catch (IOException | JsonException e) {
+			// Most likely caught mid-write; the end of the write is another change.
+			System.err.println("Failed to load " + canvasFileName + "; waiting for the next change: " + e);
+			metrics.increment(Counter.parseRetries);
+			event.skipReason = "load failed";
+			modTime = t;
+			return;
+		}
+		System.out.println("loadCanvas returned " + modified);
+		token.check();
+		CanvasEvents.Commands commandsEvent = new CanvasEvents.Commands();
+		commandsEvent.begin();
+		long start = System.nanoTime();
+		boolean commandsFound = processCommands();
+		metrics.record(Phase.commands, System.nanoTime() - start);
+		commandsEvent.canvas = canvasFileName;
+		commandsEvent.commandsFound = commandsFound;
+		commandsEvent.commit();
+		modified |= commandsFound;
+		if (requireOptIn && !annotated && !commandsFound) {
+			// Not an auto-arranged canvas.
+			metrics.increment(Counter.skippedWrites);
+			event.skipReason = "not opted in";
+			settleLoaded(t, checksum, false);
+			modTime = t;
+			return;
+		}
+		boolean engineChanged = selectEngine();
+		token.check();
+		if (!modified && !engineChanged && loadedLayout == arrangedLayout && loadedPositions == arrangedPositions) {
+			metrics.increment(Counter.fingerprintHits);
+			metrics.increment(Counter.skippedWrites);
+			event.skipReason = "layout unchanged";
+			System.out.println("Layout unchanged; skipping arrangement (" + getFingerprintHits() + " hits, "
+					+ getFingerprintMisses() + " misses).");
+			settleLoaded(t, checksum, true);
+			modTime = t;
+			return;
+		}
+		metrics.increment(Counter.fingerprintMisses);
+		if (rootNodeID != null && !nodes.containsKey(rootNodeID)) {
+			// The root was a command card that processCommands() removed.
+			System.err.println("rootNodeID=" + rootNodeID + " is no longer on the canvas.");
+			rootNodeID = defaultRoot();
+			modified = true;
+		}
+		if (rootNodeID != null) {
+			CanvasEvents.Arrange arrangeEvent = new CanvasEvents.Arrange();
+			arrangeEvent.begin();
+			boolean moved = arranger.arrange(nodes.get(rootNodeID), nodes, outgoingEdges, token);
+			arrangeEvent.canvas = canvasFileName;
+			arrangeEvent.engine = arranger.getClass().getSimpleName();
+			arrangeEvent.nodes = nodes.size();
+			arrangeEvent.edges = edges.size();
+			arrangeEvent.modified = moved;
+			arrangeEvent.commit();
+			modified |= moved;
+			if (!forest) {
+				// The forest arranger has already cleared every component's
+				// unreachable nodes, and packed the components apart.
+				modified |= clearFreeNodes();
+			}
+		}
+		event.modified = modified;
+		if (modified && canvasFile.lastModified() == t) {
+			try {
+				start = System.nanoTime();
+				saveCanvas(t);
+				metrics.record(Phase.save, System.nanoTime() - start);
+				event.bytesWritten = lastWrite.getSize();
+				rememberFingerprints();
+				settle(lastWrite, true);
+			} catch (IOException e) {
+				System.err.println("Failed to update the canvas: " + e);
+				event.skipReason = "save failed";
+			}
+		} else {
+			metrics.increment(Counter.skippedWrites);
+			event.skipReason = modified ? "canvas changed during cycle" : "nothing moved";
+			if (!modified) {
+				rememberFingerprints();
+				settleLoaded(t, checksum, true);
+			}
+			modTime = t;
+		}
+	}
 
+	/**
+	 * Move the nodes that are not in the hierarchy out from under it.
+	 *
+	 * @return true if any node moved
+	 */
+	private boolean clearFreeNodes() {
+		List<Node> arranged = new ArrayList<>();
+		Set<String> reached = new HashSet<>();
+		reached.add(rootNodeID);
+		arranged.add(nodes.get(rootNodeID));
+		for (int i = 0; i < arranged.size(); i++) {
+			for (Edge e : outgoingEdges.getOrDefault(arranged.get(i).getID(), Collections.emptyList())) {
+				Node to = nodes.get(e.getToNode());
+				if (to != null && reached.add(to.getID())) {
+					arranged.add(to);
+				}
 			}
 		}
-		System.out.println("Exiting per your request.");
+		List<Node> free = new ArrayList<>();
+		for (String id : nodeOrdering) {
+			Node n = nodes.get(id);
+			if (n != null && !reached.contains(id)) {
+				free.add(n);
+			}
+		}
+		int moved = new FreeNodes(free).clear(arranged);
+		if (moved > 0) {
+			System.out.println("Moved " + moved + " of " + free.size() + " free nodes out of the hierarchy's way.");
+		}
+		return moved > 0;
+	}
+
+	/**
+	 * Skip a change that left the canvas as it was last settled.
+	 */
+	private void skipUnchanged(CanvasEvents.Cycle event, long t) {
+		metrics.increment(Counter.skippedWrites);
+		event.skipReason = "content unchanged";
+		System.out.println("Canvas content is as last settled; skipping the parse.");
+		modTime = t;
+	}
+
+	/**
+	 * Note that the canvas as loaded needs nothing done to it.
+	 *
+	 * @param t        the modification time of the canvas that was loaded
+	 * @param checksum the CRC-32C of the canvas if it is already known, or -1
+	 * @param arranged whether the canvas is one that is arranged
+	 */
+	private void settleLoaded(long t, long checksum, boolean arranged) {
+		if (source != null) {
+			settle(new WriteSignature(source.length, canvasFile.lastModified() == t ? t : -1,
+					checksum != -1 ? checksum : WriteSignature.hash(source)), arranged);
+		}
+	}
+
+	/**
+	 * Note that the canvas, as <code>content</code> describes it, needs nothing
+	 * done to it; and, if it is one that is arranged, record that in the
+	 * {@link LayoutCache}.
+	 *
+	 * @param arranged whether the canvas is one that is arranged, rather than
+	 *                 one that has not opted in
+	 */
+	private void settle(WriteSignature content, boolean arranged) {
+		settled = content;
+		if (cache != null && arranged) {
+			cache.store(canvasFile.toPath(), new LayoutCache.Entry(content, arrangedLayout, arrangedPositions,
+					engineName, DEFAULT_ENGINE, requireOptIn));
+		}
+	}
+
+	/**
+	 * Pick up where the last run left the canvas: what it looked like when it
+	 * was last settled, how it was arranged and with which engine.
+	 */
+	private void restoreFromCache() {
+		cacheRestored = true;
+		cache = LayoutCache.shared();
+		LayoutCache.Entry entry = cache == null ? null : cache.load(canvasFile.toPath());
+		if (entry == null || !entry.defaultEngine.equals(DEFAULT_ENGINE) || entry.requireOptIn != requireOptIn) {
+			return;
+		}
+		try {
+			useEngine(entry.engine);
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		settled = entry.content;
+		arrangedLayout = entry.layout;
+		arrangedPositions = entry.positions;
+		System.out.println("Restored the state of " + canvasFileName + " from the layout cache.");
+	}
+
+	/**
+	 * Skip a change that only reproduced the canvas as we last wrote it.
+	 */
+	private void ignoreOwnWrite(long t) {
+		metrics.increment(Counter.ownWritesIgnored);
+		System.out.println(
+				"Canvas is as we last wrote it; ignoring the change (" + getOwnWritesIgnored() + " ignored).");
+		modTime = t;
+	}
+
+	/**
+	 * Record the fingerprints of the canvas as it now stands, arranged, so that a
+	 * later load of the same layout can skip the arrangement.
+	 */
+	private void rememberFingerprints() {
+		arrangedLayout = LayoutFingerprint.layout(rootNodeID, nodes.values(), edges.values());
+		arrangedPositions = LayoutFingerprint.positions(nodes.values(), edges.values());
+	}
+
+	/**
+	 * @return the number of cycles that skipped the arrangement because nothing
+	 *         that affects the layout had changed
+	 */
+	public long getFingerprintHits() {
+		return metrics.get(Counter.fingerprintHits);
+	}
+
+	/**
+	 * @return the number of cycles that had to arrange the canvas
+	 */
+	public long getFingerprintMisses() {
+		return metrics.get(Counter.fingerprintMisses);
+	}
+
+	/**
+	 * @return the number of changes that were recognized as our own writes
+	 *         without parsing the canvas; changes whose modification time matched
+	 *         our last write are not counted, since they never start a cycle
+	 */
+	public long getOwnWritesIgnored() {
+		return metrics.get(Counter.ownWritesIgnored);
+	}
+
+	public CanvasMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stop publishing this canvas's metrics; called when the canvas is no longer
+	 * tracked.
+	 */
+	void close() {
+		metrics.close();
+	}
+
+	/**
+	 * @return what the last cycle did: <code>written</code>, or why it did not
+	 *         write the canvas (as its {@link CanvasEvents.Cycle} event
+	 *         reports); null if it failed
+	 */
+	String getLastOutcome() {
+		return lastOutcome;
+	}
+
+	/**
+	 * Arrange the loaded canvas with the engine it asks for, as a cycle would,
+	 * but without the rest of the cycle. Only the benchmarks call this.
+	 *
+	 * @return true if any node was moved or any edge was changed
+	 */
+	synchronized boolean arrangeLoaded() {
+		selectEngine();
+		return rootNodeID != null && arranger.arrange(nodes.get(rootNodeID), nodes, outgoingEdges, CycleToken.NONE);
+	}
 
+	/**
+	 * Drop the state kept for incremental layout. The next cycle lays out the
+	 * whole canvas.
+	 */
+	synchronized void forgetLayout() {
+		arranger.forget();
+	}
+
+	private synchronized void unloadCanvas() {
+		nodes.clear();
+		nodeOrdering.clear();
+		edges.clear();
+		outgoingEdges.clear();
+		removedNodeIDs.clear();
+		skippedNodes.clear();
+		skippedEdges.clear();
+		source = null;
+	}
+
+	/**
+	 * When set, a canvas is only arranged if it already carries the arranger's
+	 * annotations or contains a <code>&lt;ca ...&gt;</code> command card. A
+	 * daemon that watches a whole vault sets this so that canvases nobody asked
+	 * to have arranged are left alone.
+	 */
+	void setRequireOptIn(boolean requireOptIn) {
+		this.requireOptIn = requireOptIn;
+	}
+
+	boolean isExitPending() {
+		return pendingExit;
+	}
+
+	File getCanvasFile() {
+		return canvasFile;
 	}
 
 	private static final Pattern COMMAND_PATTERN = Pattern.compile("^\\<ca(.*)\\>\\s*$");
@@ -272,7 +1237,8 @@ public class CanvasArranger implements Runnable {
 		for (Iterator<String> iter = nodes.keySet().iterator(); iter.hasNext();) {
 			String id = iter.next();
 			Node n = nodes.get(id);
-			if (n.isCard()) {
+			// Only the text of a card that may hold commands is decoded.
+			if (n.textStartsWith("<ca")) {
 				Matcher matcher = COMMAND_PATTERN.matcher(n.getText());
 				if (matcher.matches()) {
 					System.out.println("Pattern matched for " + n);
@@ -283,6 +1249,8 @@ public class CanvasArranger implements Runnable {
 					System.out.println("Commands = <" + s + ">");
 					Reader reader = new StringReader(s);
 					try {
+						// Each card's commands stand alone.
+						cmds.clear();
 						cmds.load(reader);
 						System.out.println("Number of cmds: " + cmds.size());
 					} catch (IOException e) {
@@ -303,6 +1271,17 @@ public class CanvasArranger implements Runnable {
 					} else {
 						System.out.println("show_annotations is not present.");
 					}
+					if (cmds.containsKey("layout")) {
+						String l = cmds.getStringProperty("layout");
+						if (LAYOUTS.contains(l)) {
+							layout = l;
+						} else {
+							System.err.println("Unknown layout '" + l + "'; expected one of " + LAYOUTS);
+						}
+					}
+					if (cmds.containsKey("forest")) {
+						forest = cmds.getBooleanProperty("forest");
+					}
 					if (cmds.getBooleanProperty("exit", false)) {
 						pendingExit = true;
 					}
@@ -310,6 +1289,7 @@ public class CanvasArranger implements Runnable {
 					if (remove) {
 						iter.remove();
 						nodeOrdering.remove(id);
+						removedNodeIDs.add(id);
 					}
 				} else {
 					System.out.println("pattern did not match.");
@@ -328,20 +1308,21 @@ public class CanvasArranger implements Runnable {
 			System.err.println("There is no annotations node to repaint!");
 			return;
 		}
-		JsonObject annos = buildAnnotationsObject();
-		Map<String, Boolean> config = new HashMap<>();
-		config.put(JsonGenerator.PRETTY_PRINTING, true);
-		JsonWriterFactory writerFactory = Json.createWriterFactory(config);
-		ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-		JsonWriter writer = writerFactory.createWriter(ostream);
-		writer.write(annos);
-		writer.close();
-		String msg = new String(ostream.toByteArray());
-		annotationsNode.setText(msg);
+		annotationsNode.setText(annotationsText(PRETTY_GENERATORS, modTime));
 	}
 
 	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("--batch")) {
+			System.exit(BatchArranger.run(Arrays.asList(args).subList(1, args.length)));
+		}
 		String fname = args[0];
+		PrometheusTextfile.startIfConfigured();
+		if (new File(fname).isDirectory()) {
+			VaultDaemon daemon = new VaultDaemon(new File(fname).toPath());
+			daemon.run();
+			System.out.println("Exiting normally.");
+			return;
+		}
 		CanvasArranger arranger = new CanvasArranger(fname);
 		Thread t = new Thread(arranger);
 		t.setDaemon(true);
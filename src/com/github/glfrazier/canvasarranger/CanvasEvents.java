@@ -0,0 +1,122 @@
+package com.github.glfrazier.canvasarranger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the phases of an arrange cycle, so that a
+ * recording shows where a slow cycle went, next to the JVM's own events. When
+ * no recording is running, committing an event costs next to nothing.
+ * <p>
+ * Record with, for example,
+ * <code>java -XX:StartFlightRecording=filename=arranger.jfr ...</code>, and
+ * find the events under "Canvas Arranger".
+ */
+public class CanvasEvents {
+
+	private static final String CATEGORY = "Canvas Arranger";
+
+	private CanvasEvents() {
+	}
+
+	@Name("com.github.glfrazier.canvasarranger.Cycle")
+	@Label("Canvas Cycle")
+	@Category(CATEGORY)
+	@Description("One load/arrange/save cycle of a canvas")
+	public static class Cycle extends Event {
+		@Label("Canvas")
+		String canvas;
+
+		@Label("Nodes")
+		int nodes;
+
+		@Label("Edges")
+		int edges;
+
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesRead;
+
+		@Label("Bytes Written")
+		@DataAmount
+		long bytesWritten;
+
+		@Label("Modified")
+		@Description("Whether the cycle changed the canvas")
+		boolean modified;
+
+		@Label("Save Skipped")
+		@Description("Why the canvas was not written, if it was not")
+		String skipReason;
+	}
+
+	@Name("com.github.glfrazier.canvasarranger.Load")
+	@Label("Canvas Load")
+	@Category(CATEGORY)
+	@Description("Reading and parsing a canvas")
+	public static class Load extends Event {
+		@Label("Canvas")
+		String canvas;
+
+		@Label("Nodes")
+		int nodes;
+
+		@Label("Edges")
+		int edges;
+
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesRead;
+	}
+
+	@Name("com.github.glfrazier.canvasarranger.Commands")
+	@Label("Canvas Commands")
+	@Category(CATEGORY)
+	@Description("Processing the command cards of a canvas")
+	public static class Commands extends Event {
+		@Label("Canvas")
+		String canvas;
+
+		@Label("Commands Found")
+		boolean commandsFound;
+	}
+
+	@Name("com.github.glfrazier.canvasarranger.Arrange")
+	@Label("Canvas Arrange")
+	@Category(CATEGORY)
+	@Description("Arranging the hierarchy of a canvas")
+	public static class Arrange extends Event {
+		@Label("Canvas")
+		String canvas;
+
+		@Label("Engine")
+		String engine;
+
+		@Label("Nodes")
+		int nodes;
+
+		@Label("Edges")
+		int edges;
+
+		@Label("Modified")
+		@Description("Whether any node moved or any edge changed")
+		boolean modified;
+	}
+
+	@Name("com.github.glfrazier.canvasarranger.Save")
+	@Label("Canvas Save")
+	@Category(CATEGORY)
+	@Description("Writing a canvas and renaming it into place")
+	public static class Save extends Event {
+		@Label("Canvas")
+		String canvas;
+
+		@Label("Bytes Written")
+		@DataAmount
+		long bytesWritten;
+	}
+}
@@ -0,0 +1,242 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Where one canvas's arrange cycles spend their time, and how often they run.
+ * Each phase of a cycle has a count, a total and a maximum time, and there are
+ * counters for the outcomes of cycles and gauges for the size of the canvas as
+ * last loaded.
+ * <p>
+ * Recording a time or bumping a counter is a couple of atomic operations on
+ * preallocated arrays, so it can be done on every cycle without allocating.
+ * The metrics of every open canvas are registered as an MXBean under
+ * <code>com.github.glfrazier.canvasarranger:type=CanvasMetrics</code> and can
+ * also be written out as a Prometheus textfile (see
+ * {@link PrometheusTextfile}).
+ */
+public class CanvasMetrics implements CanvasMetricsMXBean {
+
+	public static enum Phase {
+		/**
+		 * From the canvas's modification time to the start of the cycle, which
+		 * includes waiting for a burst of writes to end.
+		 */
+		detect,
+		/** Mapping and scanning a large canvas (see {@link CanvasPrescan}). */
+		prescan, read, parse, commands, hierarchy, arrange, fixEdges, save
+	}
+
+	public static enum Counter {
+		cycles,
+		/** Cycles that loaded the canvas but had no reason to write it. */
+		skippedWrites,
+		/** Changes recognized as our own writes without parsing (see {@link WriteSignature}). */
+		ownWritesIgnored,
+		/** Loads that failed, most likely mid-write, and wait for the next change. */
+		parseRetries,
+		/** Cycles that skipped the arrangement (see {@link LayoutFingerprint}). */
+		fingerprintHits,
+		fingerprintMisses,
+		/** Cycles abandoned because the canvas was modified again (see {@link CycleToken}). */
+		cancelledCycles,
+		/** Cycles decided by a {@link CanvasPrescan} without parsing the canvas. */
+		prescanSkips
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+	private static final Map<String, CanvasMetrics> OPEN = new ConcurrentHashMap<>();
+
+	private final String canvas;
+	private final AtomicLongArray phaseCounts;
+	private final AtomicLongArray phaseNanos;
+	private final AtomicLongArray phaseMaxNanos;
+	private final AtomicLongArray counters;
+	private volatile int nodes;
+	private volatile int edges;
+	private ObjectName name;
+
+	/**
+	 * Metrics that are not published anywhere.
+	 */
+	public CanvasMetrics(String canvas) {
+		this.canvas = canvas;
+		phaseCounts = new AtomicLongArray(PHASES.length);
+		phaseNanos = new AtomicLongArray(PHASES.length);
+		phaseMaxNanos = new AtomicLongArray(PHASES.length);
+		counters = new AtomicLongArray(Counter.values().length);
+	}
+
+	/**
+	 * Create the metrics for a canvas and publish them over JMX and to the
+	 * textfile. {@link #close()} them when the canvas is no longer tracked.
+	 */
+	public static CanvasMetrics open(File canvasFile) {
+		String path = canvasFile.getAbsolutePath();
+		CanvasMetrics m = new CanvasMetrics(path);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(
+					"com.github.glfrazier.canvasarranger:type=CanvasMetrics,canvas=" + ObjectName.quote(path));
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(m, name);
+			m.name = name;
+		} catch (JMException e) {
+			System.err.println("Cannot publish the metrics of " + path + " over JMX: " + e);
+		}
+		OPEN.put(path, m);
+		return m;
+	}
+
+	/**
+	 * Stop publishing these metrics.
+	 */
+	public void close() {
+		OPEN.remove(canvas, this);
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// Already gone.
+			}
+			name = null;
+		}
+	}
+
+	/**
+	 * @return the metrics of every open canvas
+	 */
+	static Collection<CanvasMetrics> all() {
+		return Collections.unmodifiableCollection(OPEN.values());
+	}
+
+	public void record(Phase phase, long nanos) {
+		int i = phase.ordinal();
+		phaseCounts.incrementAndGet(i);
+		phaseNanos.addAndGet(i, nanos);
+		long max;
+		while (nanos > (max = phaseMaxNanos.get(i)) && !phaseMaxNanos.compareAndSet(i, max, nanos)) {
+			// Lost a race with another recording; look again.
+		}
+	}
+
+	public void increment(Counter counter) {
+		counters.incrementAndGet(counter.ordinal());
+	}
+
+	public long get(Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	public long getCount(Phase phase) {
+		return phaseCounts.get(phase.ordinal());
+	}
+
+	public long getTotalNanos(Phase phase) {
+		return phaseNanos.get(phase.ordinal());
+	}
+
+	public long getMaxNanos(Phase phase) {
+		return phaseMaxNanos.get(phase.ordinal());
+	}
+
+	public void setSize(int nodes, int edges) {
+		this.nodes = nodes;
+		this.edges = edges;
+	}
+
+	@Override
+	public String getCanvas() {
+		return canvas;
+	}
+
+	@Override
+	public long getCycles() {
+		return get(Counter.cycles);
+	}
+
+	@Override
+	public long getSkippedWrites() {
+		return get(Counter.skippedWrites);
+	}
+
+	@Override
+	public long getOwnWritesIgnored() {
+		return get(Counter.ownWritesIgnored);
+	}
+
+	@Override
+	public long getParseRetries() {
+		return get(Counter.parseRetries);
+	}
+
+	@Override
+	public long getFingerprintHits() {
+		return get(Counter.fingerprintHits);
+	}
+
+	@Override
+	public long getFingerprintMisses() {
+		return get(Counter.fingerprintMisses);
+	}
+
+	@Override
+	public long getCancelledCycles() {
+		return get(Counter.cancelledCycles);
+	}
+
+	@Override
+	public long getPrescanSkips() {
+		return get(Counter.prescanSkips);
+	}
+
+	@Override
+	public int getNodes() {
+		return nodes;
+	}
+
+	@Override
+	public int getEdges() {
+		return edges;
+	}
+
+	@Override
+	public Map<String, Long> getPhaseCounts() {
+		Map<String, Long> m = new LinkedHashMap<>();
+		for (Phase p : PHASES) {
+			m.put(p.name(), getCount(p));
+		}
+		return m;
+	}
+
+	@Override
+	public Map<String, Double> getPhaseTotalMillis() {
+		Map<String, Double> m = new LinkedHashMap<>();
+		for (Phase p : PHASES) {
+			m.put(p.name(), getTotalNanos(p) / 1e6);
+		}
+		return m;
+	}
+
+	@Override
+	public Map<String, Double> getPhaseMaxMillis() {
+		Map<String, Double> m = new LinkedHashMap<>();
+		for (Phase p : PHASES) {
+			m.put(p.name(), getMaxNanos(p) / 1e6);
+		}
+		return m;
+	}
+}
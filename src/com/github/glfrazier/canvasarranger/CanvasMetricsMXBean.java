@@ -0,0 +1,38 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a canvas's {@link CanvasMetrics}. Times are in milliseconds;
+ * the per-phase maps are keyed by {@link CanvasMetrics.Phase} name.
+ */
+public interface CanvasMetricsMXBean {
+
+	String getCanvas();
+
+	long getCycles();
+
+	long getSkippedWrites();
+
+	long getOwnWritesIgnored();
+
+	long getParseRetries();
+
+	long getFingerprintHits();
+
+	long getFingerprintMisses();
+
+	long getCancelledCycles();
+
+	long getPrescanSkips();
+
+	int getNodes();
+
+	int getEdges();
+
+	Map<String, Long> getPhaseCounts();
+
+	Map<String, Double> getPhaseTotalMillis();
+
+	Map<String, Double> getPhaseMaxMillis();
+}
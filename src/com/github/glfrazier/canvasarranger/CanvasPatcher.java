@@ -0,0 +1,257 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+
+/**
+ * Produces a new version of a canvas by patching the bytes it was loaded from,
+ * rather than by serializing the model again. Only the values the arranger
+ * changes are rewritten: node coordinates, edge sides (added to an edge that
+ * had none), the text of cards whose text was set, and the annotations
+ * object. Cards removed by commands are cut
+ * out. Everything else, including the order of the entries, the formatting,
+ * and entries and fields the model does not understand, is copied verbatim.
+ */
+public class CanvasPatcher {
+
+	private final byte[] source;
+	private final List<Edit> edits;
+
+	public CanvasPatcher(byte[] source) {
+		this.source = source;
+		edits = new ArrayList<>();
+	}
+
+	/**
+	 * Work out the edits that turn the source into a canvas holding the given
+	 * model.
+	 *
+	 * @param nodes        the nodes, keyed by ID
+	 * @param removedNodes the IDs of nodes that were loaded but have since been
+	 *                     removed
+	 * @param edges        the edges, keyed by ID
+	 * @param annotations  the compact JSON text of the annotations object
+	 * @throws IllegalArgumentException if the source is not a canvas this can
+	 *                                  patch
+	 */
+	public void plan(Map<String, Node> nodes, Set<String> removedNodes, Map<String, Edge> edges,
+			String annotations) {
+		edits.clear();
+		JsonScanner s = new JsonScanner(source);
+		s.expect('{');
+		boolean sawAnnotations = false;
+		boolean empty = s.peek() == '}';
+		while (!s.consume('}')) {
+			String key = s.readString();
+			s.expect(':');
+			if (key.equals("nodes") && s.peek() == '[') {
+				planEntries(s, true, nodes, removedNodes, edges);
+			} else if (key.equals("edges") && s.peek() == '[') {
+				planEntries(s, false, nodes, removedNodes, edges);
+			} else if (key.equals("annotations")) {
+				int start = s.skipValue();
+				edits.add(new Edit(start, s.position(), utf8(annotations)));
+				sawAnnotations = true;
+			} else {
+				s.skipValue();
+			}
+			s.consume(',');
+		}
+		if (!sawAnnotations) {
+			int close = s.position() - 1;
+			String field = "\"annotations\":" + annotations;
+			edits.add(new Edit(close, close, utf8(empty ? field : "," + field)));
+		}
+		// Fields can appear in any order within an entry, and removals are only
+		// decided at the end of an array; the edits must be applied in file order.
+		edits.sort((a, b) -> Integer.compare(a.start, b.start));
+	}
+
+	private void planEntries(JsonScanner s, boolean isNodes, Map<String, Node> nodes, Set<String> removedNodes,
+			Map<String, Edge> edges) {
+		s.expect('[');
+		List<int[]> spans = new ArrayList<>();
+		List<Boolean> removed = new ArrayList<>();
+		while (!s.consume(']')) {
+			s.skipWhitespace();
+			int start = s.position();
+			boolean remove = false;
+			if (s.peek() == '{') {
+				remove = isNodes ? planNode(s, nodes, removedNodes) : planEdge(s, edges);
+			} else {
+				s.skipValue();
+			}
+			spans.add(new int[] { start, s.position() });
+			removed.add(remove);
+			s.consume(',');
+		}
+		// Cut out removed entries along with the separator that follows them, or,
+		// for a run of removed entries at the end, the separator that precedes them.
+		int n = spans.size();
+		int trailingRun = n;
+		while (trailingRun > 0 && removed.get(trailingRun - 1)) {
+			trailingRun--;
+		}
+		for (int i = 0; i < trailingRun; i++) {
+			if (removed.get(i)) {
+				edits.add(new Edit(spans.get(i)[0], spans.get(i + 1)[0], new byte[0]));
+			}
+		}
+		if (trailingRun < n) {
+			int from = trailingRun > 0 ? spans.get(trailingRun - 1)[1] : spans.get(trailingRun)[0];
+			edits.add(new Edit(from, spans.get(n - 1)[1], new byte[0]));
+		}
+	}
+
+	/**
+	 * @return true if the node is to be removed
+	 */
+	private boolean planNode(JsonScanner s, Map<String, Node> nodes, Set<String> removedNodes) {
+		s.expect('{');
+		String id = null;
+		int[] x = null, y = null, text = null;
+		while (!s.consume('}')) {
+			String key = s.readString();
+			s.expect(':');
+			s.skipWhitespace();
+			int start = s.skipValue();
+			switch (key) {
+			case "id":
+				id = s.decodeString(start, s.position());
+				break;
+			case "x":
+				x = new int[] { start, s.position() };
+				break;
+			case "y":
+				y = new int[] { start, s.position() };
+				break;
+			case "text":
+				text = new int[] { start, s.position() };
+				break;
+			}
+			s.consume(',');
+		}
+		if (id == null) {
+			return false;
+		}
+		if (removedNodes.contains(id)) {
+			return true;
+		}
+		Node n = nodes.get(id);
+		if (n == null) {
+			// Not something the model holds; keep it as it is.
+			return false;
+		}
+		replaceIfDifferent(s, x, Integer.toString(n.getX()));
+		replaceIfDifferent(s, y, Integer.toString(n.getY()));
+		if (text != null && n.isTextModified()) {
+			edits.add(new Edit(text[0], text[1], utf8(Json.createValue(n.getText()).toString())));
+		}
+		return false;
+	}
+
+	/**
+	 * @return always false; edges are never removed
+	 */
+	private boolean planEdge(JsonScanner s, Map<String, Edge> edges) {
+		s.expect('{');
+		String id = null;
+		int[] fromSide = null, toSide = null;
+		int last = s.position();
+		while (!s.consume('}')) {
+			String key = s.readString();
+			s.expect(':');
+			s.skipWhitespace();
+			int start = s.skipValue();
+			last = s.position();
+			switch (key) {
+			case "id":
+				id = s.decodeString(start, s.position());
+				break;
+			case "fromSide":
+				fromSide = new int[] { start, s.position() };
+				break;
+			case "toSide":
+				toSide = new int[] { start, s.position() };
+				break;
+			}
+			s.consume(',');
+		}
+		Edge e = id == null ? null : edges.get(id);
+		if (e == null) {
+			return false;
+		}
+		setSide(s, fromSide, last, "fromSide", e.getFromSide());
+		setSide(s, toSide, last, "toSide", e.getToSide());
+		return false;
+	}
+
+	/**
+	 * Replace the side in <code>span</code>, or, if the edge has none, add it
+	 * after the edge's last field, which ends at <code>last</code>.
+	 */
+	private void setSide(JsonScanner s, int[] span, int last, String key, Edge.Side side) {
+		if (side == null) {
+			return;
+		}
+		if (span == null) {
+			edits.add(new Edit(last, last, utf8(",\"" + key + "\":\"" + side + "\"")));
+		} else {
+			replaceIfDifferent(s, span, "\"" + side + "\"");
+		}
+	}
+
+	private void replaceIfDifferent(JsonScanner s, int[] span, String value) {
+		if (span == null) {
+			return;
+		}
+		byte[] bytes = utf8(value);
+		if (!s.regionEquals(span[0], span[1], bytes)) {
+			edits.add(new Edit(span[0], span[1], bytes));
+		}
+	}
+
+	/**
+	 * @return the number of places the source will be changed
+	 */
+	public int getEditCount() {
+		return edits.size();
+	}
+
+	/**
+	 * Write the patched canvas: the source, with the planned edits applied.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		int from = 0;
+		for (Edit e : edits) {
+			out.write(source, from, e.start - from);
+			out.write(e.replacement);
+			from = e.end;
+		}
+		out.write(source, from, source.length - from);
+	}
+
+	private static byte[] utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Replace the bytes in [start, end) of the source with replacement. */
+	private static class Edit {
+		final int start;
+		final int end;
+		final byte[] replacement;
+
+		Edit(int start, int end, byte[] replacement) {
+			this.start = start;
+			this.end = end;
+			this.replacement = replacement;
+		}
+	}
+}
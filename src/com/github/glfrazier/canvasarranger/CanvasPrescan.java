@@ -0,0 +1,142 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * What can be learned about a canvas without parsing it: its size, a CRC-32C
+ * of its bytes, whether it has an <code>annotations</code> object and whether
+ * any string in it starts with <code>&lt;ca</code>, which every command card's
+ * text does. That is enough to recognize our own writes, canvases that are not
+ * auto-arranged and canvases whose content is the same as when it was last
+ * found to need nothing, and so to skip the parse of a large canvas.
+ * <p>
+ * {@link #map(Path)} scans a memory-mapped canvas, so a canvas that turns out
+ * not to need parsing is never copied onto the heap. The file is mapped for
+ * as long as the prescan is reachable; drop it (after taking
+ * {@link #content()} if the canvas must be parsed) before the canvas is
+ * replaced.
+ */
+public class CanvasPrescan {
+
+	private static final byte[] COMMAND_START = { '"', '<', 'c', 'a' };
+
+	private final ByteBuffer buf;
+	private final long checksum;
+	private final boolean annotated;
+	private final boolean commands;
+
+	/**
+	 * Scan the bytes between the buffer's position and its limit.
+	 *
+	 * @throws IllegalArgumentException if the canvas is not a JSON object
+	 */
+	public CanvasPrescan(ByteBuffer buf) {
+		this.buf = buf;
+		CRC32C crc = new CRC32C();
+		crc.update(buf.duplicate());
+		checksum = crc.getValue();
+		annotated = hasAnnotations(buf);
+		commands = hasCommands(buf);
+	}
+
+	/**
+	 * Map the canvas and scan it.
+	 *
+	 * @throws IOException if the canvas cannot be read, or was truncated while
+	 *                     it was being scanned
+	 */
+	public static CanvasPrescan map(Path canvas) throws IOException {
+		try (FileChannel channel = FileChannel.open(canvas, StandardOpenOption.READ)) {
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new CanvasPrescan(buf);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Not a canvas: " + e.getMessage(), e);
+		} catch (InternalError e) {
+			// How the JVM reports touching a mapped page the file no longer has.
+			throw new IOException(canvas + " was truncated while it was being scanned", e);
+		}
+	}
+
+	public long getSize() {
+		return buf.remaining();
+	}
+
+	public long getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @return true if the canvas has an <code>annotations</code> object, as an
+	 *         auto-arranged canvas does
+	 */
+	public boolean isAnnotated() {
+		return annotated;
+	}
+
+	/**
+	 * @return true if the canvas may hold command cards; false if it certainly
+	 *         does not
+	 */
+	public boolean hasCommands() {
+		return commands;
+	}
+
+	/**
+	 * @return a copy of the canvas's bytes, for parsing
+	 * @throws IOException if the canvas was truncated since it was scanned
+	 */
+	public byte[] content() throws IOException {
+		byte[] content = new byte[buf.remaining()];
+		try {
+			buf.duplicate().get(content);
+		} catch (InternalError e) {
+			throw new IOException("The canvas was truncated since it was scanned", e);
+		}
+		return content;
+	}
+
+	/**
+	 * Walk the members of the top-level object, skipping over the value of each
+	 * one, looking for <code>annotations</code>.
+	 */
+	private static boolean hasAnnotations(ByteBuffer buf) {
+		JsonScanner scanner = new JsonScanner(buf);
+		scanner.expect('{');
+		if (scanner.consume('}')) {
+			return false;
+		}
+		do {
+			String key = scanner.readString();
+			scanner.expect(':');
+			if (key.equals("annotations") && scanner.peek() == '{') {
+				return true;
+			}
+			scanner.skipValue();
+		} while (scanner.consume(','));
+		return false;
+	}
+
+	/**
+	 * Look for a string that starts with <code>&lt;ca</code>. Outside of
+	 * strings a quote is never followed by <code>&lt;</code>, so a plain byte
+	 * search will do; an escaped quote inside a string can match as well, which
+	 * only costs a parse.
+	 */
+	private static boolean hasCommands(ByteBuffer buf) {
+		int end = buf.limit() - COMMAND_START.length;
+		search: for (int i = buf.position(); i <= end; i++) {
+			for (int j = 0; j < COMMAND_START.length; j++) {
+				if (buf.get(i + j) != COMMAND_START[j]) {
+					continue search;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+}
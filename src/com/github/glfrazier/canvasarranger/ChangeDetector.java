@@ -0,0 +1,189 @@
+package com.github.glfrazier.canvasarranger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocks until a canvas file changes. The directory that holds the canvas is
+ * registered with a {@link WatchService}, so on filesystems that deliver events
+ * a change wakes the waiting thread immediately and an idle canvas costs no
+ * CPU.
+ * <p>
+ * Not every filesystem delivers events (network mounts, some container
+ * volumes), and some JDKs implement the watch service by polling at a coarse
+ * interval. The last-modified time is therefore also checked whenever the
+ * watch times out, with a timeout that doubles while the file is idle and
+ * resets when a change is seen. If a change is ever found by the stat check
+ * without an accompanying event, events are treated as unreliable and the
+ * timeout is capped much lower. If the watch service cannot be created at all,
+ * this degrades to plain adaptive-backoff polling.
+ */
+public class ChangeDetector implements Closeable {
+
+	private static final long MIN_POLL_MILLIS = 20;
+	/** Ceiling for the stat check while events are being delivered. */
+	private static final long MAX_POLL_MILLIS = 5000;
+	/** Ceiling for the stat check when events have proven unreliable. */
+	private static final long MAX_UNRELIABLE_POLL_MILLIS = 500;
+
+	private final File file;
+	private final Path fileName;
+	private WatchService watcher;
+	private boolean eventsReliable;
+	private long pollMillis;
+
+	public ChangeDetector(File file) {
+		this.file = file.getAbsoluteFile();
+		Path path = this.file.toPath();
+		Path dir = path.getParent();
+		fileName = path.getFileName();
+		eventsReliable = true;
+		pollMillis = MIN_POLL_MILLIS;
+		try {
+			watcher = dir.getFileSystem().newWatchService();
+			dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+		} catch (IOException | UnsupportedOperationException e) {
+			System.err.println("Cannot watch " + dir + " for changes (" + e + "); falling back to polling.");
+			closeWatcher();
+		}
+	}
+
+	/**
+	 * Wait until the last-modified time of the file differs from
+	 * <code>lastSeen</code>.
+	 *
+	 * @param lastSeen the last-modified time of the version already processed
+	 * @return the new last-modified time
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public long awaitChange(long lastSeen) throws InterruptedException {
+		boolean sawEvent = false;
+		while (true) {
+			long t = file.lastModified();
+			if (t != lastSeen) {
+				if (!sawEvent && watcher != null && eventsReliable && pollMillis > MIN_POLL_MILLIS
+						&& !eventPending()) {
+					// The stat check found a change that the watch service never reported.
+					System.err.println("No change events for " + file + "; relying on polling.");
+					eventsReliable = false;
+				}
+				pollMillis = MIN_POLL_MILLIS;
+				return t;
+			}
+			if (watcher == null) {
+				Thread.sleep(pollMillis);
+				backOff();
+				continue;
+			}
+			WatchKey key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS);
+			if (key == null) {
+				backOff();
+				continue;
+			}
+			if (drainEvents(key)) {
+				sawEvent = true;
+				pollMillis = MIN_POLL_MILLIS;
+			}
+			if (!key.reset()) {
+				// The directory itself went away; only polling can notice it coming back.
+				System.err.println("Lost the watch on the directory of " + file + "; falling back to polling.");
+				closeWatcher();
+			}
+		}
+	}
+
+	/**
+	 * Wait up to <code>timeoutMillis</code> for an event that may concern the
+	 * file. Without a watch service this just sleeps.
+	 *
+	 * @return true if such an event arrived
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public boolean awaitEvent(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (watcher != null) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			WatchKey key = watcher.poll(remaining, TimeUnit.NANOSECONDS);
+			if (key == null) {
+				return false;
+			}
+			boolean relevant = drainEvents(key);
+			if (!key.reset()) {
+				closeWatcher();
+			}
+			if (relevant) {
+				return true;
+			}
+		}
+		long remaining = deadline - System.nanoTime();
+		if (remaining > 0) {
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if any of the pending events may concern the watched file. An
+	 *         overflow means events were lost, so it counts as relevant.
+	 */
+	private boolean drainEvents(WatchKey key) {
+		boolean relevant = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW || fileName.equals(event.context())) {
+				relevant = true;
+			}
+		}
+		return relevant;
+	}
+
+	/**
+	 * Consume any queued events without blocking, so that a change which raced
+	 * with the stat check is not mistaken for a missing event.
+	 */
+	private boolean eventPending() {
+		WatchKey key = watcher.poll();
+		if (key == null) {
+			return false;
+		}
+		boolean relevant = drainEvents(key);
+		if (!key.reset()) {
+			closeWatcher();
+		}
+		return relevant;
+	}
+
+	private void backOff() {
+		long ceiling = (watcher != null && eventsReliable) ? MAX_POLL_MILLIS : MAX_UNRELIABLE_POLL_MILLIS;
+		pollMillis = Math.min(pollMillis * 2, ceiling);
+	}
+
+	private void closeWatcher() {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				// Nothing useful to do; we are abandoning it anyway.
+			}
+		}
+		watcher = null;
+	}
+
+	@Override
+	public void close() {
+		closeWatcher();
+	}
+}
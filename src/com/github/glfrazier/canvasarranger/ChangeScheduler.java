@@ -0,0 +1,106 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a burst of changes to a canvas has finished and the canvas can
+ * be arranged. While a user drags cards, Obsidian writes the canvas many times
+ * a second; arranging after each write would be wasted work, and reading a
+ * file while it is being written yields a partial document.
+ * <p>
+ * A burst is over once the canvas has been quiet for the quiet period: no
+ * change has been reported, and its size and modification time have not
+ * changed. So that continuous editing still gets arranged a few times a
+ * second, once the burst has lasted longer than the maximum delay the quiet
+ * period is no longer required, only that the size and modification time hold
+ * still for a short settling interval.
+ * <p>
+ * The scheduler holds no threads; its owner reports changes with
+ * {@link #changed(long)} and asks {@link #delayMillis(long, long, long)} how
+ * much longer to wait. Times are {@link System#nanoTime()} values.
+ */
+public class ChangeScheduler {
+
+	private static final long SETTLE_MILLIS = 50;
+
+	private final long quietNanos;
+	private final long maxDelayNanos;
+	private final long settleNanos;
+
+	private boolean pending;
+	private long firstChange;
+	private long lastChange;
+	private long stableSince;
+	private long lastSize;
+	private long lastModified;
+
+	/**
+	 * A scheduler whose quiet period and maximum delay come from the
+	 * <code>canvasarranger.quietMillis</code> (default 100) and
+	 * <code>canvasarranger.maxDelayMillis</code> (default 500) system properties.
+	 */
+	public ChangeScheduler() {
+		this(Long.getLong("canvasarranger.quietMillis", 100), Long.getLong("canvasarranger.maxDelayMillis", 500));
+	}
+
+	public ChangeScheduler(long quietMillis, long maxDelayMillis) {
+		quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+		maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+		settleNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(quietMillis, SETTLE_MILLIS));
+		reset();
+	}
+
+	public long getQuietMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(quietNanos);
+	}
+
+	/**
+	 * Report that the canvas changed at <code>now</code>.
+	 *
+	 * @return true if this change starts a new burst
+	 */
+	public synchronized boolean changed(long now) {
+		lastChange = now;
+		if (!pending) {
+			pending = true;
+			firstChange = now;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Observe the canvas's current size and modification time and decide
+	 * whether the burst is over.
+	 *
+	 * @return 0 if the canvas can be arranged now, in which case the burst is
+	 *         over and the next change starts a new one; otherwise how many
+	 *         milliseconds to wait before asking again
+	 */
+	public synchronized long delayMillis(long now, long size, long modified) {
+		if (size != lastSize || modified != lastModified) {
+			// Still being written, or the first look at this burst.
+			lastSize = size;
+			lastModified = modified;
+			lastChange = now;
+			stableSince = now;
+		}
+		long wait;
+		if (now - firstChange >= maxDelayNanos) {
+			wait = stableSince + settleNanos - now;
+		} else {
+			wait = lastChange + quietNanos - now;
+		}
+		if (wait > 0) {
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+		}
+		reset();
+		return 0;
+	}
+
+	private void reset() {
+		pending = false;
+		lastSize = -1;
+		lastModified = -1;
+	}
+}
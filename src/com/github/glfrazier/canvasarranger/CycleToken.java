@@ -0,0 +1,90 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The version of a canvas that a cycle is working on. A cycle checks its token
+ * between phases, and the layout engines check it every so often inside their
+ * passes; once the canvas has been modified again the work is for a version
+ * that will never be written, so the check throws a
+ * {@link CancellationException} and the cycle for the newer version can start
+ * at once.
+ * <p>
+ * {@link #check()} looks at the canvas's modification time every time;
+ * {@link #check(int)} is meant for inner loops and looks at most every
+ * {@value #CHECK_INTERVAL_MILLIS} milliseconds. A token can also be cancelled
+ * from another thread by {@link #cancel()}, and every check after that
+ * throws.
+ */
+public class CycleToken {
+
+	/** A token for work that is never cancelled. */
+	public static final CycleToken NONE = new CycleToken(null, 0);
+
+	private static final long CHECK_INTERVAL_MILLIS = 10;
+	private static final long CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MILLIS);
+	/** check(i) only looks at the clock when i is a multiple of this. */
+	private static final int CHECK_STRIDE = 1024;
+
+	private final File file;
+	private final long version;
+	private volatile boolean cancelled;
+	private volatile long lastLook;
+
+	/**
+	 * @param file    the canvas
+	 * @param version the canvas's modification time when the cycle started
+	 */
+	public CycleToken(File file, long version) {
+		this.file = file;
+		this.version = version;
+		lastLook = System.nanoTime();
+	}
+
+	/**
+	 * @return true if the canvas has been modified since the cycle started, or
+	 *         the token was cancelled
+	 */
+	public boolean isSuperseded() {
+		return cancelled || file != null && file.lastModified() != version;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @throws CancellationException if the canvas has been modified since the
+	 *                               cycle started
+	 */
+	public void check() {
+		lastLook = System.nanoTime();
+		if (isSuperseded()) {
+			cancelled = true;
+			throw new CancellationException(file + " was modified again");
+		}
+	}
+
+	/**
+	 * A cheap check for the <code>i</code>th step of a loop: most calls only
+	 * compare <code>i</code>, and the canvas is looked at only if it has not
+	 * been for a while. <code>check(0)</code> always looks at the clock, for
+	 * loops whose steps are long.
+	 *
+	 * @throws CancellationException if the canvas has been modified since the
+	 *                               cycle started
+	 */
+	public void check(int i) {
+		if (i % CHECK_STRIDE != 0) {
+			return;
+		}
+		if (cancelled) {
+			throw new CancellationException(file + " was modified again");
+		}
+		if (file != null && System.nanoTime() - lastLook >= CHECK_INTERVAL_NANOS) {
+			check();
+		}
+	}
+}
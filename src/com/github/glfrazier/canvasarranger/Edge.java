@@ -1,9 +1,14 @@
 package com.github.glfrazier.canvasarranger;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 
 public class Edge {
 
@@ -15,15 +20,26 @@ public class Edge {
 		none, arrow
 	}
 
+	/** The slots of an edge's {@link RawEntry}. */
+	static final int FROM_SIDE = 0;
+	static final int TO_SIDE = 1;
+	static final int SLOTS = 2;
+	/** The names of the fields in each slot. */
+	static final String[] KEYS = { "fromSide", "toSide" };
+
 	private String id;
 	private String color;
 	private String fromNode;
 	private String toNode;
+	/** Null if the canvas leaves the side to its viewer. */
 	private Side fromSide;
+	/** Null if the canvas leaves the side to its viewer. */
 	private Side toSide;
 	private ArrowType fromEnd;
 	private ArrowType toEnd;
 	private String label;
+	/** What the edge was loaded from, if it was loaded from a canvas. */
+	RawEntry raw;
 
 	public Edge(JsonObject jEdge) {
 		id = jEdge.getString("id");
@@ -34,8 +50,16 @@ public class Edge {
 		}
 		fromNode = jEdge.getString("fromNode");
 		toNode = jEdge.getString("toNode");
-		fromSide = Side.valueOf(jEdge.getString("fromSide"));
-		toSide = Side.valueOf(jEdge.getString("toSide"));
+		try {
+			fromSide = Side.valueOf(jEdge.getString("fromSide"));
+		} catch (NullPointerException e) {
+			fromSide = null;
+		}
+		try {
+			toSide = Side.valueOf(jEdge.getString("toSide"));
+		} catch (NullPointerException e) {
+			toSide = null;
+		}
 		try {
 			fromEnd = ArrowType.valueOf(jEdge.getString("fromEnd"));
 		} catch (NullPointerException e) {
@@ -53,6 +77,19 @@ public class Edge {
 		}
 	}
 
+	public Edge(String id, String color, String fromNode, String toNode, Side fromSide, Side toSide,
+			ArrowType fromEnd, ArrowType toEnd, String label) {
+		this.id = id;
+		this.color = color;
+		this.fromNode = fromNode;
+		this.toNode = toNode;
+		this.fromSide = fromSide;
+		this.toSide = toSide;
+		this.fromEnd = fromEnd;
+		this.toEnd = toEnd;
+		this.label = label;
+	}
+
 	@Override
 	public String toString() {
 		return id;
@@ -77,8 +114,12 @@ public class Edge {
 		builder.add("id", id);
 		builder.add("fromNode", fromNode);
 		builder.add("toNode", toNode);
-		builder.add("fromSide", fromSide.toString());
-		builder.add("toSide", toSide.toString());
+		if (fromSide != null) {
+			builder.add("fromSide", fromSide.toString());
+		}
+		if (toSide != null) {
+			builder.add("toSide", toSide.toString());
+		}
 		if (color != null) {
 			builder.add("color", color);
 		}
@@ -94,6 +135,61 @@ public class Edge {
 		return builder.build();
 	}
 
+	/**
+	 * Write this edge as a JSON object, field by field, without building a
+	 * JsonObject first.
+	 */
+	public void write(JsonGenerator g) {
+		g.writeStartObject();
+		g.write("id", id);
+		g.write("fromNode", fromNode);
+		g.write("toNode", toNode);
+		if (fromSide != null) {
+			g.write("fromSide", fromSide.toString());
+		}
+		if (toSide != null) {
+			g.write("toSide", toSide.toString());
+		}
+		if (color != null) {
+			g.write("color", color);
+		}
+		if (fromEnd != null) {
+			g.write("fromEnd", fromEnd.toString());
+		}
+		if (toEnd != null) {
+			g.write("toEnd", toEnd.toString());
+		}
+		if (label != null) {
+			g.write("label", label);
+		}
+		g.writeEnd();
+	}
+
+	/**
+	 * If this edge was loaded from a canvas, write it as it was loaded, with its
+	 * sides replaced, or added if it was loaded without them.
+	 *
+	 * @return false if the edge was not loaded, and nothing was written
+	 */
+	public boolean writeRaw(OutputStream out) throws IOException {
+		if (raw == null) {
+			return false;
+		}
+		byte[][] values = new byte[SLOTS][];
+		if (fromSide != null) {
+			values[FROM_SIDE] = ("\"" + fromSide + "\"").getBytes(StandardCharsets.US_ASCII);
+		}
+		if (toSide != null) {
+			values[TO_SIDE] = ("\"" + toSide + "\"").getBytes(StandardCharsets.US_ASCII);
+		}
+		raw.writeTo(out, values, KEYS);
+		return true;
+	}
+
+	public String getID() {
+		return id;
+	}
+
 	public String getFromNode() {
 		return fromNode;
 	}
@@ -0,0 +1,379 @@
+package com.github.glfrazier.canvasarranger;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.github.glfrazier.canvasarranger.Edge.Side;
+
+/**
+ * Arranges every connected component of a canvas, not just the one below the
+ * root. The components (connected when the direction of edges is ignored) are
+ * found with a union-find over the edges; each gets a root, is laid out by
+ * another engine, and the components' bounding boxes are then packed onto
+ * shelves, tallest first, starting at the top left corner of the canvas.
+ * <p>
+ * A component's root is the canvas's root if it is in the component, and
+ * otherwise the node with the smallest ID of those that no edge leads to (or
+ * of all of its nodes, if every one of them is on a cycle). Nodes of the
+ * component that cannot be reached from its root are not laid out; they are
+ * moved out from under the laid out ones (see {@link FreeNodes}) and packed
+ * with them. A group that no edge touches is left where it is.
+ * <p>
+ * Each component is laid out by an engine of its own, kept for as long as the
+ * component has the same root, so that an engine that lays out only what has
+ * changed since its last arrangement still can. Once packed, each engine is
+ * told how far its component was moved.
+ */
+public class ForestArranger implements LayoutEngine {
+
+	private static final int COL_SEPARATION = 80;
+	private static final int ROW_SEPARATION = 80;
+
+	private final Supplier<LayoutEngine> factory;
+	/** The engine of each component that was laid out last time, keyed by the ID of its root. */
+	private Map<String, LayoutEngine> engines = new HashMap<>();
+	private CanvasMetrics metrics;
+
+	/**
+	 * @param factory makes the engine that lays out each component
+	 */
+	public ForestArranger(Supplier<LayoutEngine> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @param root the node to use as the root of its component
+	 * @return true if any node was moved or any edge was changed
+	 */
+	@Override
+	public boolean arrange(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing,
+			CycleToken token) {
+		int n = nodes.size();
+		if (n == 0) {
+			return false;
+		}
+		Node[] nodeAt = nodes.values().toArray(new Node[n]);
+		int[] x0 = new int[n];
+		int[] y0 = new int[n];
+		int anchorX = Integer.MAX_VALUE;
+		int anchorY = Integer.MAX_VALUE;
+		// parent[i] is i's parent in the union-find, or minus the size of the
+		// tree if i is a root.
+		int[] parent = new int[n];
+		for (int i = 0; i < n; i++) {
+			token.check(i);
+			Node node = nodeAt[i];
+			node.index = i;
+			parent[i] = -1;
+			x0[i] = node.getX();
+			y0[i] = node.getY();
+			anchorX = min(anchorX, x0[i]);
+			anchorY = min(anchorY, y0[i]);
+		}
+
+		// Union the ends of every edge, remembering each edge's sides so that a
+		// change to them can be told from a node merely coming back to its place.
+		boolean[] hasIncoming = new boolean[n];
+		List<Edge> edges = new ArrayList<>();
+		for (Map.Entry<String, List<Edge>> entry : outgoing.entrySet()) {
+			Node from = nodes.get(entry.getKey());
+			if (from == null) {
+				continue;
+			}
+			for (Edge e : entry.getValue()) {
+				Node to = nodes.get(e.getToNode());
+				if (to == null) {
+					continue;
+				}
+				token.check(edges.size());
+				edges.add(e);
+				union(parent, from.index, to.index);
+				if (to != from) {
+					hasIncoming[to.index] = true;
+				}
+			}
+		}
+		Side[] sides = new Side[2 * edges.size()];
+		for (int j = 0; j < edges.size(); j++) {
+			sides[2 * j] = edges.get(j).getFromSide();
+			sides[2 * j + 1] = edges.get(j).getToSide();
+		}
+
+		// Number the components, and list the nodes of each together with a
+		// counting sort.
+		int[] comp = new int[n];
+		int[] label = new int[n];
+		Arrays.fill(label, -1);
+		int c = 0;
+		for (int i = 0; i < n; i++) {
+			int r = find(parent, i);
+			if (label[r] < 0) {
+				label[r] = c++;
+			}
+			comp[i] = label[r];
+		}
+		int[] start = new int[c + 1];
+		for (int i = 0; i < n; i++) {
+			start[comp[i] + 1]++;
+		}
+		for (int k = 0; k < c; k++) {
+			start[k + 1] += start[k];
+		}
+		int[] members = new int[n];
+		int[] fill = Arrays.copyOf(start, c);
+		for (int i = 0; i < n; i++) {
+			members[fill[comp[i]]++] = i;
+		}
+
+		int[] rootOf = new int[c];
+		int[] left = new int[c];
+		int[] top = new int[c];
+		int[] right = new int[c];
+		int[] bottom = new int[c];
+		LayoutEngine[] engineOf = new LayoutEngine[c];
+		// The engines of components whose root is gone are dropped.
+		Map<String, LayoutEngine> kept = new HashMap<>();
+		for (int k = 0; k < c; k++) {
+			token.check(0);
+			rootOf[k] = chooseRoot(k, root, nodeAt, members, start, hasIncoming);
+			if (start[k + 1] - start[k] > 1) {
+				String rootID = nodeAt[rootOf[k]].getID();
+				engineOf[k] = engines.get(rootID);
+				if (engineOf[k] == null) {
+					engineOf[k] = factory.get();
+					engineOf[k].setMetrics(metrics);
+				}
+				kept.put(rootID, engineOf[k]);
+				layOut(k, engineOf[k], nodeAt, members, start, nodes, outgoing, nodeAt[rootOf[k]], token);
+			}
+			left[k] = top[k] = Integer.MAX_VALUE;
+			right[k] = bottom[k] = Integer.MIN_VALUE;
+			for (int j = start[k]; j < start[k + 1]; j++) {
+				Node node = nodeAt[members[j]];
+				left[k] = min(left[k], node.getX());
+				top[k] = min(top[k], node.getY());
+				right[k] = max(right[k], node.getX() + node.getWidth());
+				bottom[k] = max(bottom[k], node.getY() + node.getHeight());
+			}
+		}
+
+		pack(c, left, top, right, bottom, rootOf, engineOf, nodeAt, members, start, anchorX, anchorY);
+		engines = kept;
+
+		for (int i = 0; i < n; i++) {
+			if (nodeAt[i].getX() != x0[i] || nodeAt[i].getY() != y0[i]) {
+				return true;
+			}
+		}
+		for (int j = 0; j < edges.size(); j++) {
+			if (edges.get(j).getFromSide() != sides[2 * j] || edges.get(j).getToSide() != sides[2 * j + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The root of component <code>k</code>: <code>preferred</code> if it is in
+	 * the component, otherwise the node with the smallest ID that no edge leads
+	 * to, otherwise the node with the smallest ID.
+	 */
+	private static int chooseRoot(int k, Node preferred, Node[] nodeAt, int[] members, int[] start,
+			boolean[] hasIncoming) {
+		int best = -1;
+		for (int j = start[k]; j < start[k + 1]; j++) {
+			int i = members[j];
+			if (nodeAt[i] == preferred) {
+				return i;
+			}
+			if (best < 0 || hasIncoming[best] && !hasIncoming[i] || hasIncoming[best] == hasIncoming[i]
+					&& nodeAt[i].getID().compareTo(nodeAt[best].getID()) < 0) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Lay out component <code>k</code> with <code>engine</code>, which is given
+	 * only the component's nodes and the edges between them, and then clear
+	 * its unreachable nodes out from under the rest.
+	 */
+	private static void layOut(int k, LayoutEngine engine, Node[] nodeAt, int[] members, int[] start,
+			Map<String, Node> nodes, Map<String, List<Edge>> outgoing, Node root, CycleToken token) {
+		int size = start[k + 1] - start[k];
+		Map<String, Node> componentNodes = nodes;
+		if (size < nodes.size()) {
+			componentNodes = new HashMap<>(size * 2);
+			for (int j = start[k]; j < start[k + 1]; j++) {
+				Node node = nodeAt[members[j]];
+				componentNodes.put(node.getID(), node);
+			}
+		}
+		// Any edge between two nodes that exist joined them into one component,
+		// so only the edges to missing nodes have to be left out.
+		Map<String, List<Edge>> componentOutgoing = new HashMap<>(size * 2);
+		for (int j = start[k]; j < start[k + 1]; j++) {
+			String id = nodeAt[members[j]].getID();
+			List<Edge> out = outgoing.get(id);
+			if (out != null) {
+				componentOutgoing.put(id, present(out, nodes));
+			}
+		}
+		engine.arrange(root, componentNodes, componentOutgoing, token);
+
+		// The engine used Node.index for itself; find what it reached.
+		for (int j = start[k]; j < start[k + 1]; j++) {
+			nodeAt[members[j]].index = -1;
+		}
+		List<Node> reached = new ArrayList<>();
+		reached.add(root);
+		root.index = 0;
+		for (int r = 0; r < reached.size(); r++) {
+			List<Edge> out = componentOutgoing.get(reached.get(r).getID());
+			if (out == null) {
+				continue;
+			}
+			for (Edge e : out) {
+				Node to = componentNodes.get(e.getToNode());
+				if (to != null && to.index < 0) {
+					to.index = 0;
+					reached.add(to);
+				}
+			}
+		}
+		if (reached.size() < size) {
+			List<Node> unreached = new ArrayList<>();
+			for (int j = start[k]; j < start[k + 1]; j++) {
+				if (nodeAt[members[j]].index < 0) {
+					unreached.add(nodeAt[members[j]]);
+				}
+			}
+			new FreeNodes(unreached).clear(reached);
+		}
+	}
+
+	/**
+	 * @return <code>edges</code>, without those that lead to a node that is
+	 *         not on the canvas
+	 */
+	private static List<Edge> present(List<Edge> edges, Map<String, Node> nodes) {
+		for (int i = 0; i < edges.size(); i++) {
+			if (!nodes.containsKey(edges.get(i).getToNode())) {
+				List<Edge> kept = new ArrayList<>(edges.subList(0, i));
+				for (int j = i + 1; j < edges.size(); j++) {
+					if (nodes.containsKey(edges.get(j).getToNode())) {
+						kept.add(edges.get(j));
+					}
+				}
+				return kept;
+			}
+		}
+		return edges;
+	}
+
+	/**
+	 * Pack the components' boxes onto shelves: tallest first, left to right
+	 * until a shelf is about as wide as a square holding all of them would be,
+	 * then the next shelf below. The engine of each component that is moved
+	 * is told how far.
+	 */
+	private static void pack(int c, int[] left, int[] top, int[] right, int[] bottom, int[] rootOf,
+			LayoutEngine[] engineOf, Node[] nodeAt, int[] members, int[] start, int anchorX, int anchorY) {
+		Integer[] order = new Integer[c];
+		int m = 0;
+		long area = 0;
+		int widest = 0;
+		for (int k = 0; k < c; k++) {
+			if (start[k + 1] - start[k] == 1 && nodeAt[members[start[k]]].isGroup()) {
+				// A group with no edges is a backdrop; it stays where it is.
+				continue;
+			}
+			order[m++] = k;
+			int w = right[k] - left[k];
+			area += (long) (w + COL_SEPARATION) * (bottom[k] - top[k] + ROW_SEPARATION);
+			widest = max(widest, w);
+		}
+		Arrays.sort(order, 0, m, Comparator.<Integer>comparingInt(k -> top[k] - bottom[k])
+				.thenComparingInt(k -> left[k] - right[k]).thenComparing(k -> nodeAt[rootOf[k]].getID()));
+		long shelfWidth = max(widest, (long) Math.sqrt((double) area));
+		long x = anchorX;
+		long shelfTop = anchorY;
+		int shelfHeight = 0;
+		for (int o = 0; o < m; o++) {
+			int k = order[o];
+			int w = right[k] - left[k];
+			if (x > anchorX && x + w > anchorX + shelfWidth) {
+				shelfTop += shelfHeight + ROW_SEPARATION;
+				x = anchorX;
+				shelfHeight = 0;
+			}
+			int dx = (int) (x - left[k]);
+			int dy = (int) (shelfTop - top[k]);
+			if (dx != 0 || dy != 0) {
+				for (int j = start[k]; j < start[k + 1]; j++) {
+					Node node = nodeAt[members[j]];
+					node.setX(node.getX() + dx);
+					node.setY(node.getY() + dy);
+				}
+				if (engineOf[k] != null) {
+					engineOf[k].translate(dx, dy);
+				}
+			}
+			x += w + COL_SEPARATION;
+			shelfHeight = max(shelfHeight, bottom[k] - top[k]);
+		}
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] >= 0) {
+			// Path halving.
+			int p = parent[i];
+			if (parent[p] >= 0) {
+				parent[i] = parent[p];
+			}
+			i = p;
+		}
+		return i;
+	}
+
+	/**
+	 * Join the trees of <code>a</code> and <code>b</code>, the smaller below
+	 * the larger.
+	 */
+	private static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a == b) {
+			return;
+		}
+		if (parent[a] > parent[b]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		parent[a] += parent[b];
+		parent[b] = a;
+	}
+
+	@Override
+	public void forget() {
+		engines = new HashMap<>();
+	}
+
+	@Override
+	public void setMetrics(CanvasMetrics metrics) {
+		this.metrics = metrics;
+		for (LayoutEngine engine : engines.values()) {
+			engine.setMetrics(metrics);
+		}
+	}
+}
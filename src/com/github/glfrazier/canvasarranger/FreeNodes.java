@@ -0,0 +1,197 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The nodes of a canvas that the arrangement does not move: cards, media and
+ * groups that are not reachable from the root. They are indexed by a
+ * {@link SpatialGrid}, so that after an arrangement each arranged node can
+ * find the free nodes it lands on without looking at all of them.
+ * <p>
+ * A free node that an arranged node lands on is moved out of the arranged
+ * block's bounding box, by the shortest of the four moves that clear it, and
+ * further in the same direction until it does not overlap any other free
+ * node. The arranged nodes stay where the layout put them, so the root stays
+ * where the user left it. A free node that contains the root (typically a
+ * group drawn around the hierarchy) is left alone.
+ */
+public class FreeNodes {
+
+	/** How close a free node may come to an arranged node, or to another free node it is moved next to. */
+	private static final int MARGIN = 40;
+	private static final int MIN_CELL_SIZE = 256;
+
+	private final List<Node> nodes;
+	private SpatialGrid grid;
+
+	/**
+	 * @param nodes the free nodes
+	 */
+	public FreeNodes(List<Node> nodes) {
+		this.nodes = nodes;
+	}
+
+	/**
+	 * Index the free nodes. This is the only step that looks at all of them, so
+	 * it is put off until some free node is known to be in the way.
+	 */
+	private void index() {
+		long extent = 0;
+		for (Node n : nodes) {
+			extent += Math.max(n.getWidth(), n.getHeight());
+		}
+		// Cells about twice the size of an average node.
+		int cellSize = nodes.isEmpty() ? MIN_CELL_SIZE
+				: (int) Math.max(MIN_CELL_SIZE, Math.min(1 << 20, 2 * extent / nodes.size()));
+		grid = new SpatialGrid(cellSize);
+		for (Node n : nodes) {
+			grid.add(n.getX(), n.getY(), n.getWidth(), n.getHeight());
+		}
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Move the free nodes that any of <code>arranged</code> overlaps, or comes
+	 * within {@value #MARGIN} of, out of the way.
+	 *
+	 * @param arranged the nodes placed by the arrangement, the root first
+	 * @return the number of free nodes moved
+	 */
+	public int clear(List<Node> arranged) {
+		if (nodes.isEmpty() || arranged.isEmpty()) {
+			return 0;
+		}
+		Node root = arranged.get(0);
+		int left = Integer.MAX_VALUE;
+		int top = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE;
+		int bottom = Integer.MIN_VALUE;
+		for (Node a : arranged) {
+			left = Math.min(left, a.getX());
+			top = Math.min(top, a.getY());
+			right = Math.max(right, a.getX() + a.getWidth());
+			bottom = Math.max(bottom, a.getY() + a.getHeight());
+		}
+		if (!anyWithin(left - MARGIN, top - MARGIN, right + MARGIN, bottom + MARGIN)) {
+			return 0;
+		}
+		if (grid == null) {
+			index();
+		}
+		Set<Integer> hit = new LinkedHashSet<>();
+		for (Node a : arranged) {
+			grid.query(a.getX() - MARGIN, a.getY() - MARGIN, a.getWidth() + 2 * MARGIN, a.getHeight() + 2 * MARGIN,
+					i -> {
+						if (!contains(i, root)) {
+							hit.add(i);
+						}
+					});
+		}
+		List<Integer> moved = new ArrayList<>();
+		for (int i : hit) {
+			if (moveOut(i, left - MARGIN, top - MARGIN, right + MARGIN, bottom + MARGIN)) {
+				moved.add(i);
+			}
+		}
+		for (int i : moved) {
+			nodes.get(i).setX(grid.getX(i));
+			nodes.get(i).setY(grid.getY(i));
+		}
+		return moved.size();
+	}
+
+	private boolean anyWithin(int left, int top, int right, int bottom) {
+		for (Node n : nodes) {
+			if (n.getX() < right && left < n.getX() + n.getWidth() && n.getY() < bottom
+					&& top < n.getY() + n.getHeight()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean contains(int i, Node n) {
+		return grid.getX(i) <= n.getX() && grid.getY(i) <= n.getY()
+				&& n.getX() + n.getWidth() <= grid.getX(i) + grid.getWidth(i)
+				&& n.getY() + n.getHeight() <= grid.getY(i) + grid.getHeight(i);
+	}
+
+	/**
+	 * Move free node <code>i</code> out of the box, by the shortest of the four
+	 * moves, and then on in the same direction past any free node it would
+	 * overlap.
+	 *
+	 * @return true if it moved
+	 */
+	private boolean moveOut(int i, int left, int top, int right, int bottom) {
+		int x = grid.getX(i);
+		int y = grid.getY(i);
+		int w = grid.getWidth(i);
+		int h = grid.getHeight(i);
+		if (x >= right || x + w <= left || y >= bottom || y + h <= top) {
+			// Already moved clear by an earlier push.
+			return false;
+		}
+		int toLeft = x + w - left;
+		int toRight = right - x;
+		int toTop = y + h - top;
+		int toBottom = bottom - y;
+		int shortest = Math.min(Math.min(toLeft, toRight), Math.min(toTop, toBottom));
+		final int dx;
+		final int dy;
+		if (shortest == toRight) {
+			dx = 1;
+			dy = 0;
+			x = right;
+		} else if (shortest == toLeft) {
+			dx = -1;
+			dy = 0;
+			x = left - w;
+		} else if (shortest == toBottom) {
+			dx = 0;
+			dy = 1;
+			y = bottom;
+		} else {
+			dx = 0;
+			dy = -1;
+			y = top - h;
+		}
+		// Each push goes past at least one other free node, so this ends.
+		int[] blocker = new int[1];
+		while (true) {
+			blocker[0] = Integer.MIN_VALUE;
+			int fx = x;
+			int fy = y;
+			grid.query(x - MARGIN, y - MARGIN, w + 2 * MARGIN, h + 2 * MARGIN, j -> {
+				if (j == i) {
+					return;
+				}
+				// How far past j this node must go, in the direction of travel.
+				int past;
+				if (dx > 0) {
+					past = grid.getX(j) + grid.getWidth(j) + MARGIN - fx;
+				} else if (dx < 0) {
+					past = fx + w + MARGIN - grid.getX(j);
+				} else if (dy > 0) {
+					past = grid.getY(j) + grid.getHeight(j) + MARGIN - fy;
+				} else {
+					past = fy + h + MARGIN - grid.getY(j);
+				}
+				blocker[0] = Math.max(blocker[0], past);
+			});
+			if (blocker[0] <= 0) {
+				break;
+			}
+			x += dx * blocker[0];
+			y += dy * blocker[0];
+		}
+		grid.move(i, x, y);
+		return true;
+	}
+}
@@ -0,0 +1,341 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A forward-only scanner over the raw UTF-8 bytes of a JSON document. It does
+ * not build anything: it reports where values start and end, and decodes only
+ * the strings and numbers its caller asks for. This is what lets the arranger
+ * find and patch a handful of values in a canvas without parsing, decoding or
+ * re-encoding the rest of it.
+ * <p>
+ * The scanner is lenient about what it does not look at, but any malformed
+ * structure it walks through raises an {@link IllegalArgumentException}.
+ */
+public class JsonScanner {
+
+	private final ByteBuffer buf;
+	/** The buffer's array, if it has one that can be read directly. */
+	private final byte[] array;
+	private final int limit;
+	private int pos;
+
+	public JsonScanner(byte[] bytes) {
+		this(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Scan the bytes between the buffer's position and its limit. The buffer's
+	 * own position is not changed.
+	 */
+	public JsonScanner(ByteBuffer buf) {
+		this.buf = buf;
+		this.array = buf.hasArray() && buf.arrayOffset() == 0 ? buf.array() : null;
+		this.pos = buf.position();
+		this.limit = buf.limit();
+	}
+
+	public int position() {
+		return pos;
+	}
+
+	public void position(int pos) {
+		this.pos = pos;
+	}
+
+	public boolean atEnd() {
+		return pos >= limit;
+	}
+
+	/**
+	 * Skip whitespace and return the next byte without consuming it.
+	 */
+	public byte peek() {
+		skipWhitespace();
+		if (pos >= limit) {
+			throw error("Unexpected end of input");
+		}
+		return buf.get(pos);
+	}
+
+	/**
+	 * Skip whitespace and consume <code>c</code>, which must be next.
+	 */
+	public void expect(char c) {
+		if (peek() != c) {
+			throw error("Expected '" + c + "'");
+		}
+		pos++;
+	}
+
+	/**
+	 * Skip whitespace and, if <code>c</code> is next, consume it.
+	 *
+	 * @return true if <code>c</code> was consumed
+	 */
+	public boolean consume(char c) {
+		if (peek() == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	public void skipWhitespace() {
+		while (pos < limit) {
+			byte b = buf.get(pos);
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	/**
+	 * Skip the next value, however deeply nested.
+	 *
+	 * @return the offset at which the value started
+	 */
+	public int skipValue() {
+		byte b = peek();
+		int start = pos;
+		if (b == '"') {
+			skipString();
+		} else if (b == '{' || b == '[') {
+			int depth = 0;
+			while (true) {
+				if (pos >= limit) {
+					throw error("Unterminated " + (char) b);
+				}
+				byte c = buf.get(pos);
+				if (c == '"') {
+					skipString();
+					continue;
+				}
+				pos++;
+				if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					if (--depth == 0) {
+						break;
+					}
+				}
+			}
+		} else {
+			// A number or a literal: runs to the next delimiter.
+			while (pos < limit) {
+				byte c = buf.get(pos);
+				if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+					break;
+				}
+				pos++;
+			}
+			if (pos == start) {
+				throw error("Expected a value");
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Skip a string, which must be next (after whitespace), including its quotes.
+	 *
+	 * @return the offset of the opening quote
+	 */
+	public int skipString() {
+		if (peek() != '"') {
+			throw error("Expected a string");
+		}
+		int start = pos++;
+		if (array != null) {
+			// The same loop over the array: strings are most of a canvas.
+			byte[] a = array;
+			int p = pos;
+			while (p < limit) {
+				byte c = a[p++];
+				if (c == '"') {
+					pos = p;
+					return start;
+				}
+				if (c == '\\') {
+					p++;
+				}
+			}
+			pos = p;
+			throw error("Unterminated string");
+		}
+		while (true) {
+			if (pos >= limit) {
+				throw error("Unterminated string");
+			}
+			byte c = buf.get(pos++);
+			if (c == '"') {
+				return start;
+			}
+			if (c == '\\') {
+				pos++;
+			}
+		}
+	}
+
+	/**
+	 * Read and decode a string, which must be next (after whitespace).
+	 */
+	public String readString() {
+		int start = skipString();
+		return decodeString(start, pos);
+	}
+
+	/**
+	 * Decode the string whose quoted form occupies <code>[start, end)</code>.
+	 */
+	public String decodeString(int start, int end) {
+		int from = start + 1;
+		int to = end - 1;
+		boolean escaped = false;
+		for (int i = from; i < to; i++) {
+			if (buf.get(i) == '\\') {
+				escaped = true;
+				break;
+			}
+		}
+		String s;
+		if (array != null) {
+			s = new String(array, from, to - from, StandardCharsets.UTF_8);
+		} else {
+			byte[] raw = new byte[to - from];
+			for (int i = 0; i < raw.length; i++) {
+				raw[i] = buf.get(from + i);
+			}
+			s = new String(raw, StandardCharsets.UTF_8);
+		}
+		return escaped ? unescape(s) : s;
+	}
+
+	/**
+	 * Read a number, which must be next (after whitespace), truncated to an int
+	 * in the same way as <code>JsonNumber.intValue()</code>.
+	 */
+	public int readInt() {
+		skipWhitespace();
+		int start = skipValue();
+		return parseInt(start, pos);
+	}
+
+	/**
+	 * Read a number, which must be next (after whitespace), as a long.
+	 */
+	public long readLong() {
+		skipWhitespace();
+		int start = skipValue();
+		String s = ascii(start, pos);
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return (long) parseDouble(s, start);
+		}
+	}
+
+	/**
+	 * Parse the number occupying <code>[start, end)</code>, truncated to an int.
+	 */
+	public int parseInt(int start, int end) {
+		int value = 0;
+		boolean negative = false;
+		int i = start;
+		if (i < end && buf.get(i) == '-') {
+			negative = true;
+			i++;
+		}
+		if (i == end) {
+			throw error("Expected a number");
+		}
+		for (; i < end; i++) {
+			byte c = buf.get(i);
+			if (c < '0' || c > '9' || value >= 214748364) {
+				// A fraction, an exponent or a large value: take the slow path.
+				return (int) parseDouble(ascii(start, end), start);
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return true if the bytes in <code>[start, end)</code> are exactly
+	 *         <code>expected</code>
+	 */
+	public boolean regionEquals(int start, int end, byte[] expected) {
+		if (end - start != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			if (buf.get(start + i) != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double parseDouble(String s, int start) {
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error("Malformed number '" + s + "'");
+		}
+	}
+
+	private String ascii(int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) buf.get(start + i);
+		}
+		return new String(chars);
+	}
+
+	private String unescape(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != '\\' || i + 1 >= s.length()) {
+				sb.append(c);
+				continue;
+			}
+			char e = s.charAt(++i);
+			switch (e) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (i + 4 >= s.length()) {
+					throw error("Truncated \\u escape");
+				}
+				sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+				i += 4;
+				break;
+			default:
+				// \" \\ \/
+				sb.append(e);
+			}
+		}
+		return sb.toString();
+	}
+
+	private IllegalArgumentException error(String msg) {
+		return new IllegalArgumentException(msg + " at offset " + pos);
+	}
+}
@@ -0,0 +1,687 @@
+package com.github.glfrazier.canvasarranger;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.github.glfrazier.canvasarranger.CanvasMetrics.Phase;
+
+/**
+ * A layered (Sugiyama-style) layout of everything reachable from the root,
+ * using every edge rather than a spanning tree. Edges that close a cycle are
+ * turned around, each node goes on the layer below the deepest of its
+ * parents (longest path), edges that span several layers get a bend point on
+ * each layer in between, and the order within the layers is improved by
+ * barycentric sweeps, keeping whichever order had the fewest crossings. Each
+ * layer is then a row of cards, each placed as near as it can be to the
+ * middle of its neighbours.
+ * <p>
+ * Searching for a better order is what can take long, so the number of
+ * sweeps, and of passes refining the positions, is capped by how much work
+ * they would do on a graph of this size: the same graph always gets as far,
+ * and so always gets the same layout, however busy the machine is.
+ * <code>canvasarranger.layeredBudgetMillis</code> (default 200) is a ceiling
+ * above that: the search stops once three quarters of it have gone, using the
+ * best order found so far (or, if not even one sweep was finished and counted,
+ * the order that was reached), and the positions are refined for the rest of
+ * it. The passes that always run (building the layers, one pass of positions)
+ * are linear in the size of the graph and are not bounded by the budget. If
+ * the long edges would need more than {@value #BEND_POINTS_PER_ELEMENT} bend
+ * points per node and edge, they are left out of the ordering instead.
+ * <p>
+ * A layout that the budget cut short depends on how fast the machine was
+ * going, so it is remembered and used again, without another search, for as
+ * long as the graph stays the same; otherwise each arrangement of the same
+ * canvas could come out a little different and be written again. Nothing
+ * else is remembered between arrangements.
+ */
+public class LayeredArranger implements LayoutEngine {
+
+	private static final int COL_SEPARATION = 80;
+	private static final int ROW_SEPARATION = 80;
+	/** The gap kept beside the bend points of long edges. */
+	private static final int BEND_SEPARATION = COL_SEPARATION / 2;
+	private static final int BEND_POINTS_PER_ELEMENT = 4;
+	private static final int MAX_SWEEPS = 24;
+	/** Stop sweeping after this many sweeps in a row without fewer crossings. */
+	private static final int MAX_STALE_SWEEPS = 4;
+	private static final int POSITION_PASSES = 8;
+	/**
+	 * Sweeping stops once the sweeps have gone over this many nodes, bend
+	 * points and segments in all; so do the passes refining the positions.
+	 */
+	private static final long MAX_SWEEP_WORK = 4_000_000;
+	private static final long MAX_POSITION_WORK = 4_000_000;
+
+	private static final long BUDGET_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(Long.getLong("canvasarranger.layeredBudgetMillis", 200));
+
+	/** Node.index of a node that is not reachable from the root. */
+	private static final int UNREACHED = -1;
+
+	// Per node; bend points are numbered after the nodes of the canvas.
+	private Node[] nodeAt;
+	private int nodeCount;
+	private int[] layer;
+	/** The position of each node within its layer. */
+	private int[] pos;
+	private double[] centerX;
+	private int[] width;
+
+	// Per edge of the canvas.
+	private Edge[] edgeAt;
+	private int[] edgeFrom;
+	private int[] edgeTo;
+	/** Edges that close a cycle; they are laid out pointing up. */
+	private boolean[] reversed;
+
+	/**
+	 * The nodes of layer l, in order, are order[layerStart[l]] to
+	 * order[layerStart[l+1]-1].
+	 */
+	private int[] order;
+	private int[] layerStart;
+	private int layers;
+
+	// The segments between adjacent layers, grouped by their upper and lower end.
+	private int[] aboveStart;
+	private int[] above;
+	private int[] belowStart;
+	private int[] below;
+
+	private long deadline;
+	/** The last layout the budget cut short, and the {@link #graphKey(int)} of its graph. */
+	private long keptKey;
+	private int[] keptOrder;
+	private double[] keptCenterX;
+	private CanvasMetrics metrics;
+	/** The token of the arrangement in progress. */
+	private CycleToken token = CycleToken.NONE;
+
+	@Override
+	public boolean arrange(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing,
+			CycleToken token) {
+		this.token = token;
+		try {
+			return layOut(root, nodes, outgoing);
+		} finally {
+			this.token = CycleToken.NONE;
+			release();
+		}
+	}
+
+	private boolean layOut(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing) {
+		long start = System.nanoTime();
+		int rootCenter = root.getX() + root.getWidth() / 2;
+		int rootTop = root.getY();
+		int n = indexGraph(root, nodes, outgoing);
+		nodeCount = n;
+		breakCycles(n);
+		int total = assignLayers(n);
+		long built = System.nanoTime();
+		int work = total + above.length;
+		long key = graphKey(n);
+		int sweeps = 0;
+		long crossings = -1;
+		boolean timedOut = false;
+		boolean kept = keptOrder != null && keptKey == key && keptOrder.length == total;
+		if (kept) {
+			order = keptOrder;
+			centerX = keptCenterX;
+		} else {
+			deadline = start + BUDGET_NANOS * 3 / 4;
+			int maxSweeps = (int) min(MAX_SWEEPS, max(1, MAX_SWEEP_WORK / work));
+			int stale = 0;
+			int[] best = null;
+			while (crossings != 0 && sweeps < maxSweeps && stale < MAX_STALE_SWEEPS) {
+				if (!sweep(true) || !sweep(false)) {
+					timedOut = true;
+					break;
+				}
+				sweeps++;
+				long c = countCrossings();
+				if (c < 0) {
+					timedOut = true;
+					break;
+				}
+				if (best == null || c < crossings) {
+					crossings = c;
+					best = order.clone();
+					stale = 0;
+				} else {
+					stale++;
+				}
+			}
+			if (best != null) {
+				order = best;
+			}
+			for (int i = 0; i < total; i++) {
+				pos[order[i]] = i - layerStart[layer[order[i]]];
+			}
+			deadline = start + BUDGET_NANOS;
+			int passes = (int) min(POSITION_PASSES, max(1, MAX_POSITION_WORK / work));
+			timedOut |= !assignPositions(total, passes);
+			if (timedOut) {
+				keptKey = key;
+				keptOrder = order.clone();
+				keptCenterX = centerX.clone();
+			} else {
+				keptOrder = null;
+				keptCenterX = null;
+			}
+		}
+		boolean modified = place(n, rootCenter, rootTop);
+		long placed = System.nanoTime();
+		modified |= fixEdges();
+		if (kept) {
+			System.out.println(
+					"Layered " + n + " nodes on " + layers + " layers as last time, when it ran out of time");
+		} else {
+			System.out.println("Layered " + n + " nodes on " + layers + " layers; "
+					+ (crossings < 0 ? "crossings not counted" : crossings + " crossings") + " after " + sweeps
+					+ " sweeps" + (timedOut ? " (out of time)" : ""));
+		}
+		if (metrics != null) {
+			metrics.record(Phase.hierarchy, built - start);
+			metrics.record(Phase.arrange, placed - built);
+			metrics.record(Phase.fixEdges, System.nanoTime() - placed);
+		}
+		return modified;
+	}
+
+	/**
+	 * Drop the arrays of the last arrangement, and any layout kept because the
+	 * budget cut it short.
+	 */
+	@Override
+	public void forget() {
+		release();
+		keptOrder = null;
+		keptCenterX = null;
+	}
+
+	/**
+	 * Drop the arrays of the last arrangement.
+	 */
+	private void release() {
+		nodeAt = null;
+		edgeAt = null;
+		layer = pos = width = edgeFrom = edgeTo = order = layerStart = null;
+		aboveStart = above = belowStart = below = null;
+		centerX = null;
+		reversed = null;
+	}
+
+	@Override
+	public void setMetrics(CanvasMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Number the nodes reachable from the root breadth-first, stamping each
+	 * with its number, and collect the edges between them. The edges come out
+	 * grouped by the node they leave from. Loops are left out.
+	 *
+	 * @return the number of nodes reached
+	 */
+	private int indexGraph(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing) {
+		for (Node node : nodes.values()) {
+			node.index = UNREACHED;
+		}
+		nodeAt = new Node[nodes.size()];
+		int n = 0;
+		root.index = n;
+		nodeAt[n++] = root;
+		edgeAt = new Edge[16];
+		edgeFrom = new int[16];
+		edgeTo = new int[16];
+		int m = 0;
+		for (int u = 0; u < n; u++) {
+			token.check(u);
+			List<Edge> out = outgoing.get(nodeAt[u].getID());
+			if (out == null) {
+				continue;
+			}
+			for (Edge e : out) {
+				Node v = nodes.get(e.getToNode());
+				if (v == null || v == nodeAt[u]) {
+					continue;
+				}
+				if (v.index == UNREACHED) {
+					v.index = n;
+					nodeAt[n++] = v;
+				}
+				if (m == edgeAt.length) {
+					edgeAt = Arrays.copyOf(edgeAt, m * 2);
+					edgeFrom = Arrays.copyOf(edgeFrom, m * 2);
+					edgeTo = Arrays.copyOf(edgeTo, m * 2);
+				}
+				edgeAt[m] = e;
+				edgeFrom[m] = u;
+				edgeTo[m] = v.index;
+				m++;
+			}
+		}
+		edgeAt = Arrays.copyOf(edgeAt, m);
+		edgeFrom = Arrays.copyOf(edgeFrom, m);
+		edgeTo = Arrays.copyOf(edgeTo, m);
+		return n;
+	}
+
+	/**
+	 * @return a hash of everything the order and the positions of the layers
+	 *         are computed from: the nodes reached, in the order they were, with
+	 *         their widths, and the edges between them
+	 */
+	private long graphKey(int n) {
+		long h = n;
+		for (int u = 0; u < n; u++) {
+			h = mix(h, nodeAt[u].getID().hashCode());
+			h = mix(h, nodeAt[u].getWidth());
+		}
+		for (int e = 0; e < edgeAt.length; e++) {
+			h = mix(h, ((long) edgeFrom[e] << 32) | edgeTo[e]);
+		}
+		return h;
+	}
+
+	private static long mix(long h, long v) {
+		h ^= v;
+		h *= 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * Depth-first from the root, mark the edges that lead back to a node still
+	 * on the stack. Turning those around leaves a graph without cycles in which
+	 * the root is the only node without parents.
+	 */
+	private void breakCycles(int n) {
+		int m = edgeAt.length;
+		reversed = new boolean[m];
+		int[] outStart = new int[n + 1];
+		for (int e = 0; e < m; e++) {
+			outStart[edgeFrom[e] + 1]++;
+		}
+		for (int u = 0; u < n; u++) {
+			outStart[u + 1] += outStart[u];
+		}
+		byte[] state = new byte[n];
+		int[] next = new int[n];
+		int[] stack = new int[n];
+		int sp = 0;
+		stack[sp++] = 0;
+		state[0] = 1;
+		next[0] = outStart[0];
+		while (sp > 0) {
+			int u = stack[sp - 1];
+			if (next[u] == outStart[u + 1]) {
+				state[u] = 2;
+				sp--;
+				continue;
+			}
+			int e = next[u]++;
+			int v = edgeTo[e];
+			if (state[v] == 0) {
+				state[v] = 1;
+				next[v] = outStart[v];
+				stack[sp++] = v;
+			} else if (state[v] == 1) {
+				reversed[e] = true;
+			}
+		}
+	}
+
+	/**
+	 * Put each node on the layer below the deepest of its parents and add bend
+	 * points to the edges that span more than one layer. Each layer starts out
+	 * in the order its nodes were reached from the root, and not in the order
+	 * they are on the canvas: that way the same graph is always given the same
+	 * layout, and a layout that is arranged again stays as it is.
+	 *
+	 * @return the number of nodes, counting the bend points
+	 */
+	private int assignLayers(int n) {
+		int m = edgeAt.length;
+		int[] upper = new int[m];
+		int[] lower = new int[m];
+		int[] parents = new int[n];
+		int[] childStart = new int[n + 1];
+		for (int e = 0; e < m; e++) {
+			upper[e] = reversed[e] ? edgeTo[e] : edgeFrom[e];
+			lower[e] = reversed[e] ? edgeFrom[e] : edgeTo[e];
+			parents[lower[e]]++;
+			childStart[upper[e] + 1]++;
+		}
+		for (int u = 0; u < n; u++) {
+			childStart[u + 1] += childStart[u];
+		}
+		int[] children = new int[m];
+		int[] fill = Arrays.copyOf(childStart, n);
+		for (int e = 0; e < m; e++) {
+			children[fill[upper[e]]++] = e;
+		}
+		// Longest path, in topological order.
+		int[] depth = new int[n];
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = 0;
+		while (head < tail) {
+			int u = queue[head++];
+			for (int i = childStart[u]; i < childStart[u + 1]; i++) {
+				int v = lower[children[i]];
+				depth[v] = max(depth[v], depth[u] + 1);
+				if (--parents[v] == 0) {
+					queue[tail++] = v;
+				}
+			}
+		}
+		long bends = 0;
+		for (int e = 0; e < m; e++) {
+			bends += depth[lower[e]] - depth[upper[e]] - 1;
+		}
+		boolean longEdges = bends <= (long) BEND_POINTS_PER_ELEMENT * (n + m);
+		int total = n + (longEdges ? (int) bends : 0);
+		layer = Arrays.copyOf(depth, total);
+		width = new int[total];
+		for (int u = 0; u < n; u++) {
+			width[u] = nodeAt[u].getWidth();
+		}
+		// Segments between adjacent layers.
+		int[] segUpper = new int[m + (longEdges ? (int) bends : 0)];
+		int[] segLower = new int[segUpper.length];
+		int segments = 0;
+		int next = n;
+		for (int e = 0; e < m; e++) {
+			int a = upper[e];
+			int b = lower[e];
+			int span = depth[b] - depth[a];
+			if (span == 1) {
+				segUpper[segments] = a;
+				segLower[segments++] = b;
+			} else if (longEdges) {
+				int prev = a;
+				for (int k = 1; k < span; k++) {
+					int bend = next++;
+					layer[bend] = depth[a] + k;
+					segUpper[segments] = prev;
+					segLower[segments++] = bend;
+					prev = bend;
+				}
+				segUpper[segments] = prev;
+				segLower[segments++] = b;
+			}
+		}
+		aboveStart = new int[total + 1];
+		belowStart = new int[total + 1];
+		for (int s = 0; s < segments; s++) {
+			aboveStart[segLower[s] + 1]++;
+			belowStart[segUpper[s] + 1]++;
+		}
+		for (int v = 0; v < total; v++) {
+			aboveStart[v + 1] += aboveStart[v];
+			belowStart[v + 1] += belowStart[v];
+		}
+		above = new int[segments];
+		below = new int[segments];
+		int[] aboveFill = Arrays.copyOf(aboveStart, total);
+		int[] belowFill = Arrays.copyOf(belowStart, total);
+		for (int s = 0; s < segments; s++) {
+			above[aboveFill[segLower[s]]++] = segUpper[s];
+			below[belowFill[segUpper[s]]++] = segLower[s];
+		}
+		// The layers, each in the order its nodes were numbered.
+		layers = 0;
+		for (int v = 0; v < total; v++) {
+			layers = max(layers, layer[v] + 1);
+		}
+		layerStart = new int[layers + 1];
+		for (int v = 0; v < total; v++) {
+			layerStart[layer[v] + 1]++;
+		}
+		for (int l = 0; l < layers; l++) {
+			layerStart[l + 1] += layerStart[l];
+		}
+		order = new int[total];
+		int[] layerFill = Arrays.copyOf(layerStart, layers);
+		for (int v = 0; v < total; v++) {
+			order[layerFill[layer[v]]++] = v;
+		}
+		pos = new int[total];
+		for (int i = 0; i < total; i++) {
+			pos[order[i]] = i - layerStart[layer[order[i]]];
+		}
+		return total;
+	}
+
+	/**
+	 * Reorder every layer but the first by the average position of each node's
+	 * neighbours on the layer above (going down) or below (going up). A node
+	 * without such neighbours keeps its place as nearly as it can.
+	 *
+	 * @return false if the time ran out before the sweep was done
+	 */
+	private boolean sweep(boolean down) {
+		long[] keys = new long[maxLayerSize()];
+		int[] was = new int[keys.length];
+		int[] start = down ? aboveStart : belowStart;
+		int[] neighbours = down ? above : below;
+		for (int k = 1; k < layers; k++) {
+			int l = down ? k : layers - 1 - k;
+			int s = layerStart[l];
+			int size = layerStart[l + 1] - s;
+			for (int i = 0; i < size; i++) {
+				int v = order[s + i];
+				was[i] = v;
+				double barycenter = i;
+				if (start[v] < start[v + 1]) {
+					long sum = 0;
+					for (int j = start[v]; j < start[v + 1]; j++) {
+						sum += pos[neighbours[j]];
+					}
+					barycenter = (double) sum / (start[v + 1] - start[v]);
+				}
+				// Ties keep their current order.
+				keys[i] = (Math.round(barycenter * 256) << 32) | i;
+			}
+			Arrays.sort(keys, 0, size);
+			for (int i = 0; i < size; i++) {
+				int v = was[(int) keys[i]];
+				order[s + i] = v;
+				pos[v] = i;
+			}
+			token.check(0);
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Count the crossings between each pair of adjacent layers: going along
+	 * the upper layer, each segment crosses every segment seen so far that
+	 * ended further right on the lower layer (Barth, Juenger and Mutzel).
+	 *
+	 * @return the number of crossings, or -1 if the time ran out
+	 */
+	private long countCrossings() {
+		long crossings = 0;
+		int[] tree = new int[maxLayerSize() + 1];
+		int[] ends = new int[16];
+		for (int l = 0; l + 1 < layers; l++) {
+			int lowerSize = layerStart[l + 2] - layerStart[l + 1];
+			Arrays.fill(tree, 0, lowerSize + 1, 0);
+			int seen = 0;
+			for (int i = layerStart[l]; i < layerStart[l + 1]; i++) {
+				int u = order[i];
+				int count = belowStart[u + 1] - belowStart[u];
+				if (count > ends.length) {
+					ends = new int[max(count, ends.length * 2)];
+				}
+				for (int j = 0; j < count; j++) {
+					ends[j] = pos[below[belowStart[u] + j]];
+				}
+				Arrays.sort(ends, 0, count);
+				for (int j = 0; j < count; j++) {
+					int p = ends[j] + 1;
+					// Segments seen so far that end at or left of p.
+					int atOrLeft = 0;
+					for (int t = p; t > 0; t -= t & -t) {
+						atOrLeft += tree[t];
+					}
+					crossings += seen - atOrLeft;
+					for (int t = p; t <= lowerSize; t += t & -t) {
+						tree[t]++;
+					}
+					seen++;
+				}
+			}
+			token.check(0);
+			if (System.nanoTime() > deadline) {
+				return -1;
+			}
+		}
+		return crossings;
+	}
+
+	private int maxLayerSize() {
+		int size = 0;
+		for (int l = 0; l < layers; l++) {
+			size = max(size, layerStart[l + 1] - layerStart[l]);
+		}
+		return size;
+	}
+
+	/**
+	 * Give every node the x of its center: first packed from the left, then,
+	 * layer by layer going down and then up, as near as the order and the gaps
+	 * allow to the average of its neighbours on the layer just done. Each layer
+	 * is placed from the left and from the right, pushing cards apart where
+	 * they would be too close, and the two results averaged, so that neither
+	 * side is favoured. At least one pass is made, and more, up to
+	 * <code>passes</code>, while there is time.
+	 *
+	 * @return false if the time ran out before <code>passes</code> were made
+	 */
+	private boolean assignPositions(int total, int passes) {
+		centerX = new double[total];
+		for (int l = 0; l < layers; l++) {
+			double left = 0;
+			for (int i = layerStart[l]; i < layerStart[l + 1]; i++) {
+				int v = order[i];
+				if (i > layerStart[l]) {
+					left += gap(order[i - 1], v);
+				}
+				centerX[v] = left;
+			}
+		}
+		int size = maxLayerSize();
+		double[] desired = new double[size];
+		double[] fromLeft = new double[size];
+		double[] fromRight = new double[size];
+		for (int pass = 0; pass < passes; pass++) {
+			for (int l = 1; l < layers; l++) {
+				align(l, aboveStart, above, desired, fromLeft, fromRight);
+			}
+			for (int l = layers - 2; l >= 0; l--) {
+				align(l, belowStart, below, desired, fromLeft, fromRight);
+			}
+			token.check(0);
+			if (pass + 1 < passes && System.nanoTime() > deadline) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void align(int l, int[] start, int[] neighbours, double[] desired, double[] fromLeft,
+			double[] fromRight) {
+		int s = layerStart[l];
+		int size = layerStart[l + 1] - s;
+		for (int i = 0; i < size; i++) {
+			int v = order[s + i];
+			desired[i] = centerX[v];
+			if (start[v] < start[v + 1]) {
+				double sum = 0;
+				for (int j = start[v]; j < start[v + 1]; j++) {
+					sum += centerX[neighbours[j]];
+				}
+				desired[i] = sum / (start[v + 1] - start[v]);
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			fromLeft[i] = i == 0 ? desired[i] : max(desired[i], fromLeft[i - 1] + gap(order[s + i - 1], order[s + i]));
+		}
+		for (int i = size - 1; i >= 0; i--) {
+			fromRight[i] = i == size - 1 ? desired[i]
+					: min(desired[i], fromRight[i + 1] - gap(order[s + i], order[s + i + 1]));
+		}
+		for (int i = 0; i < size; i++) {
+			centerX[order[s + i]] = (fromLeft[i] + fromRight[i]) / 2;
+		}
+	}
+
+	/**
+	 * @return how far apart the centers of two neighbours on a layer must be
+	 */
+	private double gap(int left, int right) {
+		int separation = left < nodeCount && right < nodeCount ? COL_SEPARATION : BEND_SEPARATION;
+		return (width[left] + width[right]) / 2.0 + separation;
+	}
+
+	/**
+	 * Move the cards: the root's center-top stays at (x,y), and each layer is a
+	 * row as tall as its tallest card.
+	 *
+	 * @return true if any node moved
+	 */
+	private boolean place(int n, int x, int y) {
+		int[] rowTop = new int[layers];
+		for (int u = 0; u < n; u++) {
+			rowTop[layer[u]] = max(rowTop[layer[u]], nodeAt[u].getHeight());
+		}
+		int top = y;
+		for (int l = 0; l < layers; l++) {
+			int height = rowTop[l];
+			rowTop[l] = top;
+			top += height + ROW_SEPARATION;
+		}
+		double offset = x - centerX[0];
+		boolean modified = false;
+		for (int u = 0; u < n; u++) {
+			Node node = nodeAt[u];
+			int newX = (int) Math.round(centerX[u] + offset) - width[u] / 2;
+			int newY = rowTop[layer[u]];
+			modified |= node.getX() != newX || node.getY() != newY;
+			node.setX(newX);
+			node.setY(newY);
+		}
+		return modified;
+	}
+
+	/**
+	 * Edges leave the bottom of the upper card for the top of the lower one;
+	 * edges that close a cycle point up, from top to bottom.
+	 *
+	 * @return true if any edge changed
+	 */
+	private boolean fixEdges() {
+		boolean modified = false;
+		for (int e = 0; e < edgeAt.length; e++) {
+			Edge.Side from = reversed[e] ? Edge.Side.top : Edge.Side.bottom;
+			Edge.Side to = reversed[e] ? Edge.Side.bottom : Edge.Side.top;
+			if (edgeAt[e].getFromSide() != from || edgeAt[e].getToSide() != to) {
+				edgeAt[e].setFromSide(from);
+				edgeAt[e].setToSide(to);
+				modified = true;
+			}
+		}
+		return modified;
+	}
+}
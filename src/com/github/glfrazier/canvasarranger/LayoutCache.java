@@ -0,0 +1,261 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * What the arranger last concluded about each canvas, kept on disk so that a
+ * restarted arranger does not have to parse and arrange every canvas again to
+ * find out that nothing needs doing. An entry records the content of the
+ * canvas as it was last left settled (written by us, or found to need
+ * nothing), as a {@link WriteSignature}, and the {@link LayoutFingerprint}s of
+ * its arrangement. A canvas whose size and modification time still match needs
+ * no work at all; one that was edited while the arranger was not running is
+ * parsed, but its arrangement is skipped if the edit did not touch the layout.
+ * Only canvases that are arranged have entries; one that has not opted in is
+ * cheap to skip again.
+ * <p>
+ * Entries live in one small file per canvas, named after a digest of the
+ * canvas's path, under <code>canvasarranger.cacheDir</code> (default
+ * <code>~/.cache/canvasarranger</code>; empty to turn the cache off). Each
+ * file starts with a magic number, a format version and a layout version, and
+ * files of any other version are ignored: an entry is only good for the
+ * engines that wrote it. When a new entry would take the directory past
+ * <code>canvasarranger.cacheMaxBytes</code> (default 1 MiB), the least
+ * recently written entries are removed, until a quarter of that is free.
+ */
+public class LayoutCache {
+
+	private static final int MAGIC = 0x43414c43; // "CALC"
+	private static final int VERSION = 1;
+	/**
+	 * The version of the layout engines. Change it whenever any of them would
+	 * place nodes or route edges differently, so that an arrangement cached by
+	 * the old engines is not taken for one by the new.
+	 */
+	static final int LAYOUT_VERSION = 2;
+	private static final String SUFFIX = ".layout";
+
+	private static LayoutCache shared;
+	private static boolean sharedOpened;
+
+	private final Path dir;
+	private final long maxBytes;
+	/** The bytes in the directory as of the last look, plus those added since; -1 before the first look. */
+	private long knownBytes = -1;
+
+	public LayoutCache(Path dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the cache named by the system properties, or null if it is turned
+	 *         off or its directory cannot be created
+	 */
+	public static synchronized LayoutCache shared() {
+		if (!sharedOpened) {
+			sharedOpened = true;
+			String name = System.getProperty("canvasarranger.cacheDir",
+					Paths.get(System.getProperty("user.home"), ".cache", "canvasarranger").toString());
+			if (!name.isEmpty()) {
+				try {
+					Path dir = Files.createDirectories(Paths.get(name));
+					shared = new LayoutCache(dir, Long.getLong("canvasarranger.cacheMaxBytes", 1 << 20));
+				} catch (IOException e) {
+					System.err.println("Cannot use " + name + " as the layout cache: " + e);
+				}
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * @return the entry for <code>canvas</code>, or null if there is none that
+	 *         this version of the arranger can read, or it was written by other
+	 *         versions of the engines
+	 */
+	public Entry load(Path canvas) {
+		String path = canvas.toAbsolutePath().toString();
+		Path file = fileFor(path);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != LAYOUT_VERSION
+					|| !in.readUTF().equals(path)) {
+				return null;
+			}
+			WriteSignature content = new WriteSignature(in.readLong(), in.readLong(), in.readLong());
+			long layout = in.readLong();
+			long positions = in.readLong();
+			String engine = in.readUTF();
+			String defaultEngine = in.readUTF();
+			boolean requireOptIn = in.readBoolean();
+			return new Entry(content, layout, positions, engine, defaultEngine, requireOptIn);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			System.err.println("Ignoring the unreadable layout cache entry " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Record <code>entry</code> for <code>canvas</code>, replacing any entry it
+	 * had. Failures are reported and otherwise ignored; the cache only saves
+	 * work.
+	 */
+	public void store(Path canvas, Entry entry) {
+		String path = canvas.toAbsolutePath().toString();
+		Path file = fileFor(path);
+		Path tmp = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			boolean added = !Files.exists(file);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(LAYOUT_VERSION);
+				out.writeUTF(path);
+				out.writeLong(entry.content.getSize());
+				out.writeLong(entry.content.getModified());
+				out.writeLong(entry.content.getHash());
+				out.writeLong(entry.layout);
+				out.writeLong(entry.positions);
+				out.writeUTF(entry.engine);
+				out.writeUTF(entry.defaultEngine);
+				out.writeBoolean(entry.requireOptIn);
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (added) {
+				added(Files.size(file));
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot write the layout cache entry for " + path + ": " + e);
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException e2) {
+				// Nothing more to do.
+			}
+		}
+	}
+
+	/**
+	 * Count a new entry, and evict if the directory may now be over its limit.
+	 * The directory is only listed when that might be so, so that adding many
+	 * entries does not list it once for each.
+	 */
+	private synchronized void added(long size) throws IOException {
+		if (knownBytes >= 0) {
+			knownBytes += size;
+		}
+		if (knownBytes < 0 || knownBytes > maxBytes) {
+			knownBytes = evict();
+		}
+	}
+
+	/**
+	 * If the directory holds more than <code>maxBytes</code> of entries, remove
+	 * the least recently written until it holds three quarters of that, so that
+	 * it is not listed again for a while.
+	 *
+	 * @return the bytes left in the directory
+	 */
+	private long evict() throws IOException {
+		List<Path> files = new ArrayList<>();
+		long total = 0;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path f : entries) {
+				files.add(f);
+				total += Files.size(f);
+			}
+		}
+		if (total <= maxBytes) {
+			return total;
+		}
+		files.sort(Comparator.comparing(LayoutCache::lastModified));
+		for (Path f : files) {
+			if (total <= maxBytes / 4 * 3) {
+				break;
+			}
+			long size = Files.size(f);
+			if (Files.deleteIfExists(f)) {
+				total -= size;
+			}
+		}
+		return total;
+	}
+
+	private static FileTime lastModified(Path f) {
+		try {
+			return Files.getLastModifiedTime(f);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	private Path fileFor(String path) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (int i = 0; i < 16; i++) {
+				name.append(String.format("%02x", digest[i]));
+			}
+			return dir.resolve(name + SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * What was concluded about a canvas.
+	 */
+	public static class Entry {
+
+		final WriteSignature content;
+		final long layout;
+		final long positions;
+		final String engine;
+		final String defaultEngine;
+		final boolean requireOptIn;
+
+		/**
+		 * @param content       the canvas as it was left settled
+		 * @param layout        its layout fingerprint
+		 * @param positions     its positions fingerprint
+		 * @param engine        the engine that arranged it, as
+		 *                      {@link CanvasArranger} names them
+		 * @param defaultEngine the engine for canvases that do not name a layout,
+		 *                      which the choice of engine depends on
+		 * @param requireOptIn  whether only opted-in canvases were arranged
+		 */
+		public Entry(WriteSignature content, long layout, long positions, String engine, String defaultEngine,
+				boolean requireOptIn) {
+			this.content = content;
+			this.layout = layout;
+			this.positions = positions;
+			this.engine = engine;
+			this.defaultEngine = defaultEngine;
+			this.requireOptIn = requireOptIn;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Something that arranges a canvas's hierarchy. An engine may remember things
+ * about its last arrangement, so one is kept for as long as the same canvas is
+ * being arranged.
+ */
+public interface LayoutEngine {
+
+	/**
+	 * Arrange the hierarchy below <code>root</code>, moving nodes and setting the
+	 * sides of edges in place.
+	 *
+	 * @param root     the node at the top of the hierarchy
+	 * @param nodes    all of the nodes on the canvas, keyed by ID
+	 * @param outgoing the edges leaving each node, keyed by the ID of the node
+	 *                 they leave from
+	 * @param token    checked every so often while arranging
+	 * @return true if any node was moved or any edge was changed
+	 * @throws CancellationException if <code>token</code> is superseded; the
+	 *                               nodes and edges may then be half arranged
+	 */
+	boolean arrange(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing, CycleToken token);
+
+	/**
+	 * Arrange the hierarchy below <code>root</code>, with no way of abandoning
+	 * the arrangement part way.
+	 */
+	default boolean arrange(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing) {
+		return arrange(root, nodes, outgoing, CycleToken.NONE);
+	}
+
+	/**
+	 * Discard whatever is kept between arrangements.
+	 */
+	void forget();
+
+	/**
+	 * Tell the engine that every node of its last arrangement has since been
+	 * moved by (<code>dx</code>, <code>dy</code>), so that the next arrangement
+	 * does not take the move for an edit. An engine that keeps no positions
+	 * between arrangements has nothing to do.
+	 */
+	default void translate(int dx, int dy) {
+	}
+
+	/**
+	 * Record how long the hierarchy, arrange and fixEdges phases of each later
+	 * arrangement take.
+	 *
+	 * @param metrics where to record them, or null not to
+	 */
+	void setMetrics(CanvasMetrics metrics);
+
+	/**
+	 * @param name <code>objects</code> for {@link Arranger}, <code>arrays</code>
+	 *             for {@link ArrayArranger}, <code>tidy</code> for
+	 *             {@link TidyArranger}, <code>layered</code> for
+	 *             {@link LayeredArranger}
+	 * @throws IllegalArgumentException if there is no engine of that name
+	 */
+	static LayoutEngine create(String name) {
+		switch (name) {
+		case "objects":
+			return new Arranger();
+		case "arrays":
+			return new ArrayArranger();
+		case "tidy":
+			return new TidyArranger();
+		case "layered":
+			return new LayeredArranger();
+		default:
+			throw new IllegalArgumentException("Unknown layout engine '" + name + "'");
+		}
+	}
+}
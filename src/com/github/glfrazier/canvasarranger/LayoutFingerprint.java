@@ -0,0 +1,88 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.util.Collection;
+
+/**
+ * Cheap 64-bit fingerprints of a loaded canvas, used to recognize loads that
+ * cannot change the arrangement.
+ * <p>
+ * The <em>layout</em> fingerprint covers everything the arrangement depends
+ * on: the root, the ID and size of every node, and the endpoints of every
+ * edge. The <em>positions</em> fingerprint covers what the arrangement
+ * produces: the position of every node and the sides of every edge. Card text,
+ * colors and labels are in neither, so edits to them leave both unchanged.
+ * <p>
+ * Nodes are combined order-independently, since their order in the file does
+ * not affect the arrangement. Edges are combined in order, because the first
+ * edge to reach a node decides whether it is a child or a backlink.
+ */
+public class LayoutFingerprint {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private LayoutFingerprint() {
+	}
+
+	public static long layout(String rootID, Collection<Node> nodes, Collection<Edge> edges) {
+		long nodeSum = 0;
+		for (Node n : nodes) {
+			long h = mix(FNV_OFFSET, n.getID());
+			h = mix(h, n.getWidth());
+			h = mix(h, n.getHeight());
+			nodeSum += finish(h);
+		}
+		long h = mix(FNV_OFFSET, rootID);
+		h = mix(h, nodeSum);
+		for (Edge e : edges) {
+			h = mix(h, e.getFromNode());
+			h = mix(h, e.getToNode());
+		}
+		return finish(h);
+	}
+
+	public static long positions(Collection<Node> nodes, Collection<Edge> edges) {
+		long nodeSum = 0;
+		for (Node n : nodes) {
+			long h = mix(FNV_OFFSET, n.getID());
+			h = mix(h, n.getX());
+			h = mix(h, n.getY());
+			nodeSum += finish(h);
+		}
+		long h = mix(FNV_OFFSET, nodeSum);
+		for (Edge e : edges) {
+			h = mix(h, e.getFromSide() == null ? -1 : e.getFromSide().ordinal());
+			h = mix(h, e.getToSide() == null ? -1 : e.getToSide().ordinal());
+		}
+		return finish(h);
+	}
+
+	private static long mix(long h, String s) {
+		if (s == null) {
+			return mix(h, -1L);
+		}
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		}
+		// Terminate the string so that ("ab","c") and ("a","bc") differ.
+		return (h ^ 0xff) * FNV_PRIME;
+	}
+
+	private static long mix(long h, long v) {
+		for (int i = 0; i < 8; i++) {
+			h = (h ^ (v & 0xff)) * FNV_PRIME;
+			v >>>= 8;
+		}
+		return h;
+	}
+
+	/** A final avalanche, so that the sums of per-node hashes are well spread. */
+	private static long finish(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -1,18 +1,39 @@
 package com.github.glfrazier.canvasarranger;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 
 public class Node {
 
 	public static enum NodeType {
-		text, file
+		text, file, link, group;
+
+		/**
+		 * @return the type called <code>name</code>, or null if there is none
+		 */
+		public static NodeType parse(String name) {
+			for (NodeType t : values()) {
+				if (t.name().equals(name)) {
+					return t;
+				}
+			}
+			return null;
+		}
 	};
 
+	/** The slots of a node's {@link RawEntry}. */
+	static final int X = 0;
+	static final int Y = 1;
+	static final int TEXT = 2;
+	static final int SLOTS = 3;
+
 	// Fields that are derived from the Obsidian Json
 	protected String id;
 	protected String color;
@@ -20,8 +41,19 @@ public class Node {
 	protected int y;
 	protected int width;
 	protected int height;
+	/** Null for a type this version does not know. */
 	protected NodeType type;
+	/**
+	 * The text of a card, the file, the URL of a link or the label of a group.
+	 * The text of a loaded card is only decoded when it is asked for.
+	 */
 	protected String content;
+	/** True once the text has been set since the node was loaded. */
+	protected boolean textModified;
+	/** Scratch space for a layout engine: this node's index in its arrays. */
+	int index;
+	/** What the node was loaded from, if it was loaded from a canvas. */
+	RawEntry raw;
 
 	public Node(JsonObject jNode) {
 		id = jNode.getString("id");
@@ -34,17 +66,24 @@ public class Node {
 		y = jNode.getInt("y");
 		width = jNode.getInt("width");
 		height = jNode.getInt("height");
-		type = NodeType.valueOf(jNode.getString("type"));
-		switch (type) {
-		case text:
-			content = jNode.getString("text");
-			break;
-		case file:
-			content = jNode.getString("file");
-			break;
+		type = NodeType.parse(jNode.getString("type"));
+		String field = contentField();
+		if (field != null) {
+			content = jNode.getString(field, null);
 		}
 	}
 
+	public Node(String id, String color, int x, int y, int width, int height, NodeType type, String content) {
+		this.id = id;
+		this.color = color;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.type = type;
+		this.content = content;
+	}
+
 	@Override
 	public String toString() {
 		return id + "(" + x + "," + y + ")";
@@ -74,28 +113,119 @@ public class Node {
 		if (color != null) {
 			builder.add("color", color);
 		}
-		builder.add("type", type.toString());
+		if (type != null) {
+			builder.add("type", type.toString());
+		}
+		if (getContent() != null) {
+			builder.add(contentField(), content);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Write this node as a JSON object, field by field, without building a
+	 * JsonObject first.
+	 */
+	public void write(JsonGenerator g) {
+		g.writeStartObject();
+		g.write("id", id);
+		g.write("x", x);
+		g.write("y", y);
+		g.write("width", width);
+		g.write("height", height);
+		if (color != null) {
+			g.write("color", color);
+		}
+		if (type != null) {
+			g.write("type", type.toString());
+		}
+		if (getContent() != null) {
+			g.write(contentField(), content);
+		}
+		g.writeEnd();
+	}
+
+	/**
+	 * If this node was loaded from a canvas, write it as it was loaded, with its
+	 * coordinates and, if it was set, its text replaced.
+	 *
+	 * @return false if the node was not loaded, and nothing was written
+	 */
+	public boolean writeRaw(OutputStream out) throws IOException {
+		if (raw == null) {
+			return false;
+		}
+		byte[][] values = new byte[SLOTS][];
+		values[X] = Integer.toString(x).getBytes(StandardCharsets.US_ASCII);
+		values[Y] = Integer.toString(y).getBytes(StandardCharsets.US_ASCII);
+		if (textModified) {
+			values[TEXT] = Json.createValue(content).toString().getBytes(StandardCharsets.UTF_8);
+		}
+		raw.writeTo(out, values);
+		return true;
+	}
+
+	/**
+	 * @return the name of the field that holds the content of a node of this
+	 *         type, or null if it has none
+	 */
+	private String contentField() {
+		if (type == null) {
+			return null;
+		}
 		switch (type) {
 		case text:
-			builder.add("text", content);
-			break;
+			return "text";
 		case file:
-			builder.add("file", content);
-			break;
+			return "file";
+		case link:
+			return "url";
+		default:
+			return "label";
 		}
-		return builder.build();
+	}
+
+	private String getContent() {
+		return type == NodeType.text ? getText() : content;
 	}
 
 	public boolean isCard() {
 		return type == NodeType.text;
 	}
 
+	public boolean isGroup() {
+		return type == NodeType.group;
+	}
+
 	public String getText() {
+		if (content == null && raw != null && raw.hasValue(TEXT)) {
+			content = raw.decodeString(TEXT);
+		}
 		return content;
 	}
 
+	/**
+	 * @return true if this is a card whose text starts with the ASCII
+	 *         <code>prefix</code>; the text of a loaded card is not decoded to
+	 *         find out
+	 */
+	public boolean textStartsWith(String prefix) {
+		if (!isCard()) {
+			return false;
+		}
+		if (content == null && raw != null) {
+			return raw.stringStartsWith(TEXT, prefix);
+		}
+		return content != null && content.startsWith(prefix);
+	}
+
 	public void setText(String text) {
 		content = text;
+		textModified = true;
+	}
+
+	public boolean isTextModified() {
+		return textModified;
 	}
 
 	public String getID() {
@@ -0,0 +1,150 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes the {@link CanvasMetrics} of every open canvas that has
+ * run at least one cycle to a file in the Prometheus text format, for the node
+ * exporter's textfile collector. Each series carries a <code>canvas</code>
+ * label with the canvas's path. The file is replaced atomically, so the
+ * collector never reads a partial file.
+ * <p>
+ * Nothing is written unless <code>canvasarranger.metricsFile</code> names the
+ * file; <code>canvasarranger.metricsIntervalSeconds</code> (default 15) sets
+ * how often.
+ */
+public class PrometheusTextfile implements Runnable {
+
+	private final Path file;
+
+	public PrometheusTextfile(Path file) {
+		this.file = file.toAbsolutePath();
+	}
+
+	/**
+	 * Start writing the textfile on a daemon thread, if one is configured.
+	 */
+	public static void startIfConfigured() {
+		String name = System.getProperty("canvasarranger.metricsFile");
+		if (name == null || name.isEmpty()) {
+			return;
+		}
+		long interval = Long.getLong("canvasarranger.metricsIntervalSeconds", 15);
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "canvas-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleWithFixedDelay(new PrometheusTextfile(Paths.get(name)), interval, interval, TimeUnit.SECONDS);
+		System.out.println("Writing metrics to " + name + " every " + interval + " s.");
+	}
+
+	@Override
+	public void run() {
+		try {
+			write();
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to write the metrics to " + file + ": " + e);
+		}
+	}
+
+	public void write() throws IOException {
+		Path tmp = file.resolveSibling("." + file.getFileName() + ".tmp");
+		try {
+			try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				writeTo(w);
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private void writeTo(Writer w) throws IOException {
+		w.write("# HELP canvasarranger_phase_seconds Time spent in each phase of the arrange cycle.\n");
+		w.write("# TYPE canvasarranger_phase_seconds summary\n");
+		for (CanvasMetrics m : CanvasMetrics.all()) {
+			if (m.getCycles() == 0) {
+				continue;
+			}
+			for (CanvasMetrics.Phase p : CanvasMetrics.Phase.values()) {
+				String labels = labels(m, p);
+				sample(w, "canvasarranger_phase_seconds_sum", labels, seconds(m.getTotalNanos(p)));
+				sample(w, "canvasarranger_phase_seconds_count", labels, Long.toString(m.getCount(p)));
+			}
+		}
+		w.write("# HELP canvasarranger_phase_max_seconds The longest time spent in each phase.\n");
+		w.write("# TYPE canvasarranger_phase_max_seconds gauge\n");
+		for (CanvasMetrics m : CanvasMetrics.all()) {
+			if (m.getCycles() == 0) {
+				continue;
+			}
+			for (CanvasMetrics.Phase p : CanvasMetrics.Phase.values()) {
+				sample(w, "canvasarranger_phase_max_seconds", labels(m, p), seconds(m.getMaxNanos(p)));
+			}
+		}
+		for (CanvasMetrics.Counter c : CanvasMetrics.Counter.values()) {
+			String name = "canvasarranger_" + snakeCase(c.name()) + "_total";
+			w.write("# TYPE " + name + " counter\n");
+			for (CanvasMetrics m : CanvasMetrics.all()) {
+				if (m.getCycles() != 0) {
+					sample(w, name, labels(m, null), Long.toString(m.get(c)));
+				}
+			}
+		}
+		w.write("# TYPE canvasarranger_nodes gauge\n");
+		for (CanvasMetrics m : CanvasMetrics.all()) {
+			if (m.getCycles() != 0) {
+				sample(w, "canvasarranger_nodes", labels(m, null), Integer.toString(m.getNodes()));
+			}
+		}
+		w.write("# TYPE canvasarranger_edges gauge\n");
+		for (CanvasMetrics m : CanvasMetrics.all()) {
+			if (m.getCycles() != 0) {
+				sample(w, "canvasarranger_edges", labels(m, null), Integer.toString(m.getEdges()));
+			}
+		}
+	}
+
+	private static void sample(Writer w, String name, String labels, String value) throws IOException {
+		w.write(name);
+		w.write(labels);
+		w.write(' ');
+		w.write(value);
+		w.write('\n');
+	}
+
+	private static String labels(CanvasMetrics m, CanvasMetrics.Phase phase) {
+		String canvas = "canvas=\"" + escape(m.getCanvas()) + "\"";
+		return phase == null ? "{" + canvas + "}" : "{" + canvas + ",phase=\"" + phase + "\"}";
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+	}
+
+	/** Label values escape backslash, double quote and newline. */
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/** <code>skippedWrites</code> becomes <code>skipped_writes</code>. */
+	private static String snakeCase(String s) {
+		return s.replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,145 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The bytes a node or edge was loaded from, and where among them are the
+ * values the arranger may change: a node's coordinates and text, an edge's
+ * sides. An entry written back is copied from these bytes with only those
+ * values replaced, or added if the entry had none, so its other fields, its
+ * formatting and the text of its card are kept exactly, and are never decoded
+ * or encoded again. An entry the model cannot hold has no slots, and is
+ * written back exactly as it was.
+ * <p>
+ * The bytes are those of the whole canvas, which every entry of a canvas
+ * shares; nothing is copied.
+ */
+class RawEntry {
+
+	private final byte[] source;
+	private final int start;
+	private final int end;
+	/** The start and end of the value in each slot, or -1 where the entry has none. */
+	private final int[] values;
+
+	/**
+	 * @param source the canvas
+	 * @param start  where the entry starts in it
+	 * @param end    where the entry ends
+	 * @param values the start and end of the value in each slot, or -1
+	 */
+	RawEntry(byte[] source, int start, int end, int[] values) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
+		this.values = values;
+	}
+
+	/**
+	 * @return an array to pass to the constructor, with no values set
+	 */
+	static int[] noValues(int slots) {
+		int[] values = new int[2 * slots];
+		Arrays.fill(values, -1);
+		return values;
+	}
+
+	/**
+	 * @return where the entry starts in the canvas
+	 */
+	int getStart() {
+		return start;
+	}
+
+	boolean hasValue(int slot) {
+		return values[2 * slot] >= 0;
+	}
+
+	/**
+	 * Decode the value in <code>slot</code>, which must be a string.
+	 */
+	String decodeString(int slot) {
+		return new JsonScanner(source).decodeString(values[2 * slot], values[2 * slot + 1]);
+	}
+
+	/**
+	 * @return true if the value in <code>slot</code> is a string whose raw form
+	 *         starts with the ASCII <code>prefix</code>
+	 */
+	boolean stringStartsWith(int slot, String prefix) {
+		int from = values[2 * slot];
+		if (from < 0 || source[from] != '"' || values[2 * slot + 1] - from - 2 < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (source[from + 1 + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the entry, with the value in each slot for which
+	 * <code>replacements</code> holds something replaced by it. A replacement
+	 * for a slot the entry has no value in is dropped.
+	 */
+	void writeTo(OutputStream out, byte[][] replacements) throws IOException {
+		writeTo(out, replacements, null);
+	}
+
+	/**
+	 * Write the entry, with the value in each slot for which
+	 * <code>replacements</code> holds something replaced by it. A replacement
+	 * for a slot the entry has no value in is added as a field, named by
+	 * <code>keys</code>, after the entry's last field.
+	 *
+	 * @param keys the ASCII name of the field in each slot, or null to drop
+	 *             replacements for slots the entry has no value in
+	 */
+	void writeTo(OutputStream out, byte[][] replacements, String[] keys) throws IOException {
+		int from = start;
+		while (true) {
+			// The fields can be in any order; take the replaced values in file order.
+			int next = -1;
+			for (int k = 0; k < replacements.length; k++) {
+				if (replacements[k] != null && values[2 * k] >= from
+						&& (next < 0 || values[2 * k] < values[2 * next])) {
+					next = k;
+				}
+			}
+			if (next < 0) {
+				break;
+			}
+			out.write(source, from, values[2 * next] - from);
+			out.write(replacements[next]);
+			from = values[2 * next + 1];
+		}
+		if (keys != null) {
+			// Just past the last field: before the closing brace, and any
+			// whitespace in front of it.
+			int last = end - 1;
+			while (last > start + 1 && isWhitespace(source[last - 1])) {
+				last--;
+			}
+			boolean empty = last == start + 1;
+			for (int k = 0; k < replacements.length; k++) {
+				if (replacements[k] != null && values[2 * k] < 0) {
+					out.write(source, from, last - from);
+					from = last;
+					out.write(((empty ? "\"" : ",\"") + keys[k] + "\":").getBytes(StandardCharsets.US_ASCII));
+					out.write(replacements[k]);
+					empty = false;
+				}
+			}
+		}
+		out.write(source, from, end - from);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+}
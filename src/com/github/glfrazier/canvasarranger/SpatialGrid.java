@@ -0,0 +1,170 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * An index of rectangles on a uniform grid: each rectangle is listed in every
+ * cell it touches, so finding the rectangles that overlap a region only looks
+ * at the cells the region touches, however many rectangles there are
+ * elsewhere. Only occupied cells are stored.
+ * <p>
+ * Rectangles are numbered from 0 in the order they are added.
+ */
+public class SpatialGrid {
+
+	private final int cellSize;
+	/** The rectangles in each occupied cell, keyed by {@link #key(int, int)}. */
+	private final Map<Long, Cell> cells = new HashMap<>();
+	private int[] x = new int[16];
+	private int[] y = new int[16];
+	private int[] width = new int[16];
+	private int[] height = new int[16];
+	private int size;
+	/** stamp[i] == queries once rectangle i has been reported by this query. */
+	private int[] stamp = new int[16];
+	private int queries;
+
+	/**
+	 * @param cellSize the width and height of a cell; about the size of a
+	 *                 typical rectangle works well
+	 */
+	public SpatialGrid(int cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * @return the number of the rectangle
+	 */
+	public int add(int x, int y, int width, int height) {
+		if (size == this.x.length) {
+			int c = size * 2;
+			this.x = Arrays.copyOf(this.x, c);
+			this.y = Arrays.copyOf(this.y, c);
+			this.width = Arrays.copyOf(this.width, c);
+			this.height = Arrays.copyOf(this.height, c);
+			stamp = Arrays.copyOf(stamp, c);
+		}
+		int i = size++;
+		this.x[i] = x;
+		this.y[i] = y;
+		this.width[i] = width;
+		this.height[i] = height;
+		link(i, true);
+		return i;
+	}
+
+	/**
+	 * Move rectangle <code>i</code> so that its top left corner is at (x,y).
+	 */
+	public void move(int i, int x, int y) {
+		link(i, false);
+		this.x[i] = x;
+		this.y[i] = y;
+		link(i, true);
+	}
+
+	public int getX(int i) {
+		return x[i];
+	}
+
+	public int getY(int i) {
+		return y[i];
+	}
+
+	public int getWidth(int i) {
+		return width[i];
+	}
+
+	public int getHeight(int i) {
+		return height[i];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Report each rectangle that overlaps the given one, once. Rectangles that
+	 * only touch it are not reported.
+	 */
+	public void query(int qx, int qy, int qwidth, int qheight, IntConsumer action) {
+		if (++queries == 0) {
+			// Wrapped around; old stamps could be mistaken for this query's.
+			Arrays.fill(stamp, 0);
+			queries = 1;
+		}
+		int left = Math.floorDiv(qx, cellSize);
+		int right = Math.floorDiv(qx + qwidth - 1, cellSize);
+		int top = Math.floorDiv(qy, cellSize);
+		int bottom = Math.floorDiv(qy + qheight - 1, cellSize);
+		for (int cx = left; cx <= right; cx++) {
+			for (int cy = top; cy <= bottom; cy++) {
+				Cell cell = cells.get(key(cx, cy));
+				if (cell == null) {
+					continue;
+				}
+				for (int j = 0; j < cell.size; j++) {
+					int i = cell.items[j];
+					if (stamp[i] != queries && x[i] < qx + qwidth && qx < x[i] + width[i] && y[i] < qy + qheight
+							&& qy < y[i] + height[i]) {
+						stamp[i] = queries;
+						action.accept(i);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add rectangle <code>i</code> to, or remove it from, every cell it
+	 * touches.
+	 */
+	private void link(int i, boolean add) {
+		int left = Math.floorDiv(x[i], cellSize);
+		int right = Math.floorDiv(x[i] + Math.max(1, width[i]) - 1, cellSize);
+		int top = Math.floorDiv(y[i], cellSize);
+		int bottom = Math.floorDiv(y[i] + Math.max(1, height[i]) - 1, cellSize);
+		for (int cx = left; cx <= right; cx++) {
+			for (int cy = top; cy <= bottom; cy++) {
+				Long key = key(cx, cy);
+				if (add) {
+					cells.computeIfAbsent(key, k -> new Cell()).add(i);
+				} else {
+					Cell cell = cells.get(key);
+					if (cell != null && cell.remove(i) && cell.size == 0) {
+						cells.remove(key);
+					}
+				}
+			}
+		}
+	}
+
+	private static long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+
+	private static class Cell {
+		int[] items = new int[4];
+		int size;
+
+		void add(int i) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size * 2);
+			}
+			items[size++] = i;
+		}
+
+		boolean remove(int i) {
+			for (int j = 0; j < size; j++) {
+				if (items[j] == i) {
+					items[j] = items[--size];
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
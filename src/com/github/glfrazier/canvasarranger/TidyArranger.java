@@ -0,0 +1,383 @@
+package com.github.glfrazier.canvasarranger;
+
+import static java.lang.Math.max;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.glfrazier.canvasarranger.CanvasMetrics.Phase;
+
+/**
+ * A down/centered tidy tree, laid out with Walker's algorithm in the linear
+ * time version of Buchheim, Juenger and Leipert. {@link Arranger} gives every
+ * subtree a box as wide as its widest level, so the boxes of irregular trees
+ * are mostly empty; here a subtree is pushed against its left sibling as far
+ * as their actual outlines allow, keeping <code>COL_SEPARATION</code> between
+ * neighbouring cards. Parents are centered over their first and last child.
+ * <p>
+ * The outlines are compared level by level, so the nodes of a level share a
+ * row: each row is as tall as its tallest card, with
+ * <code>ROW_SEPARATION</code> between rows. Both walks are iterative, so a deep
+ * hierarchy does not need a deep stack.
+ */
+public class TidyArranger implements LayoutEngine {
+
+	private static final int COL_SEPARATION = 80;
+	private static final int ROW_SEPARATION = 80;
+
+	private Tnode root;
+	/** Every node of the hierarchy in breadth-first order, parents before children. */
+	private List<Tnode> order;
+	private CanvasMetrics metrics;
+	/** The token of the arrangement in progress. */
+	private CycleToken token = CycleToken.NONE;
+
+	/**
+	 * @return true if any node was moved or any edge was changed
+	 */
+	@Override
+	public boolean arrange(Node root, Map<String, Node> nodes, Map<String, List<Edge>> outgoing,
+			CycleToken token) {
+		long start = System.nanoTime();
+		this.token = token;
+		try {
+			buildHierarchy(root, nodes, outgoing);
+			long built = System.nanoTime();
+			firstWalk();
+			int midpointX = root.getX() + root.getWidth() / 2;
+			boolean modified = secondWalk(midpointX, root.getY());
+			long placed = System.nanoTime();
+			modified |= fixEdges();
+			if (metrics != null) {
+				metrics.record(Phase.hierarchy, built - start);
+				metrics.record(Phase.arrange, placed - built);
+				metrics.record(Phase.fixEdges, System.nanoTime() - placed);
+			}
+			return modified;
+		} finally {
+			this.token = CycleToken.NONE;
+			forget();
+		}
+	}
+
+	/**
+	 * Nothing is kept between arrangements; each one lays out everything, and
+	 * the hierarchy is dropped as soon as it is done.
+	 */
+	@Override
+	public void forget() {
+		root = null;
+		order = null;
+	}
+
+	@Override
+	public void setMetrics(CanvasMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Breadth-first from the root, as in {@link Arranger}: the first edge to
+	 * reach a node makes it a child, and every later edge to it is a backlink.
+	 * Each node's children are then put in their current left-to-right order.
+	 */
+	private void buildHierarchy(Node rootNode, Map<String, Node> nodes, Map<String, List<Edge>> outgoing) {
+		root = new Tnode(rootNode, null, 0);
+		order = new ArrayList<>();
+		Map<Node, Tnode> nodeMap = new HashMap<>();
+		nodeMap.put(rootNode, root);
+		Deque<Tnode> nodesToProcess = new ArrayDeque<>();
+		nodesToProcess.add(root);
+		while (!nodesToProcess.isEmpty()) {
+			Tnode tnode = nodesToProcess.poll();
+			order.add(tnode);
+			token.check(order.size());
+			List<Edge> edges = outgoing.get(tnode.node.getID());
+			if (edges == null) {
+				continue;
+			}
+			for (Edge e : edges) {
+				Node dst = nodes.get(e.getToNode());
+				if (dst == null) {
+					continue;
+				}
+				Tnode other = nodeMap.get(dst);
+				if (other == null) {
+					Tnode child = new Tnode(dst, tnode, tnode.depth + 1);
+					nodeMap.put(dst, child);
+					nodesToProcess.add(child);
+					tnode.children.add(child);
+					tnode.childEdges.add(e);
+				} else {
+					tnode.backlinks.add(e);
+					tnode.backlinkTargets.add(other);
+				}
+			}
+		}
+		for (Tnode t : order) {
+			if (t.children.size() > 1) {
+				t.children.sort(leftToRight);
+			}
+			for (int i = 0; i < t.children.size(); i++) {
+				t.children.get(i).number = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Give every node its preliminary x relative to its parent, deepest level
+	 * first. A node's children are fitted against each other from left to right,
+	 * each one's subtree moved right until it clears the subtrees to its left,
+	 * and the parent is then centered over them.
+	 * <p>
+	 * Walker's first walk is recursive; its work for a node depends only on the
+	 * node's own subtree, so going through the nodes in reverse breadth-first
+	 * order does the same work in the same order relative to each parent.
+	 */
+	private void firstWalk() {
+		for (int i = order.size() - 1; i >= 0; i--) {
+			token.check(i);
+			Tnode v = order.get(i);
+			if (v.children.isEmpty()) {
+				continue;
+			}
+			Tnode defaultAncestor = v.children.get(0);
+			Tnode left = null;
+			for (Tnode w : v.children) {
+				if (left == null) {
+					w.prelim = w.children.isEmpty() ? 0 : w.midpoint;
+				} else {
+					w.prelim = left.prelim + distance(left, w);
+					if (!w.children.isEmpty()) {
+						w.mod = w.prelim - w.midpoint;
+					}
+				}
+				defaultAncestor = apportion(w, left, defaultAncestor);
+				left = w;
+			}
+			executeShifts(v);
+			v.midpoint = (v.children.get(0).prelim + v.children.get(v.children.size() - 1).prelim) / 2;
+		}
+		root.prelim = root.children.isEmpty() ? 0 : root.midpoint;
+	}
+
+	/**
+	 * Walk down the right outline of the subtrees left of <code>v</code> and the
+	 * left outline of <code>v</code>'s subtree together, moving <code>v</code>'s
+	 * subtree right wherever the two come too close. The move is spread over the
+	 * siblings in between by {@link #executeShifts(Tnode)}. Where one outline
+	 * is deeper than the other, a thread is left from the end of the shorter one
+	 * so that later walks can follow it.
+	 *
+	 * @param v                the subtree being fitted
+	 * @param leftSibling      the sibling to the left of <code>v</code>, or null
+	 * @param defaultAncestor  the left sibling whose subtree a node on the left
+	 *                         outline belongs to, when its own ancestor is stale
+	 * @return the defaultAncestor for <code>v</code>'s right sibling
+	 */
+	private Tnode apportion(Tnode v, Tnode leftSibling, Tnode defaultAncestor) {
+		if (leftSibling == null) {
+			return defaultAncestor;
+		}
+		Tnode vInnerRight = v;
+		Tnode vOuterRight = v;
+		Tnode vInnerLeft = leftSibling;
+		Tnode vOuterLeft = v.parent.children.get(0);
+		double sInnerRight = vInnerRight.mod;
+		double sOuterRight = vOuterRight.mod;
+		double sInnerLeft = vInnerLeft.mod;
+		double sOuterLeft = vOuterLeft.mod;
+		while (nextRight(vInnerLeft) != null && nextLeft(vInnerRight) != null) {
+			vInnerLeft = nextRight(vInnerLeft);
+			vInnerRight = nextLeft(vInnerRight);
+			vOuterLeft = nextLeft(vOuterLeft);
+			vOuterRight = nextRight(vOuterRight);
+			vOuterRight.ancestor = v;
+			double shift = (vInnerLeft.prelim + sInnerLeft) - (vInnerRight.prelim + sInnerRight)
+					+ distance(vInnerLeft, vInnerRight);
+			if (shift > 0) {
+				Tnode a = vInnerLeft.ancestor.parent == v.parent ? vInnerLeft.ancestor : defaultAncestor;
+				moveSubtree(a, v, shift);
+				sInnerRight += shift;
+				sOuterRight += shift;
+			}
+			sInnerLeft += vInnerLeft.mod;
+			sInnerRight += vInnerRight.mod;
+			sOuterLeft += vOuterLeft.mod;
+			sOuterRight += vOuterRight.mod;
+		}
+		if (nextRight(vInnerLeft) != null && nextRight(vOuterRight) == null) {
+			vOuterRight.thread = nextRight(vInnerLeft);
+			vOuterRight.mod += sInnerLeft - sOuterRight;
+		}
+		if (nextLeft(vInnerRight) != null && nextLeft(vOuterLeft) == null) {
+			vOuterLeft.thread = nextLeft(vInnerRight);
+			vOuterLeft.mod += sInnerRight - sOuterLeft;
+			defaultAncestor = v;
+		}
+		return defaultAncestor;
+	}
+
+	private static Tnode nextLeft(Tnode v) {
+		return v.children.isEmpty() ? v.thread : v.children.get(0);
+	}
+
+	private static Tnode nextRight(Tnode v) {
+		return v.children.isEmpty() ? v.thread : v.children.get(v.children.size() - 1);
+	}
+
+	/**
+	 * Move the subtree of <code>right</code> by <code>shift</code>, and note that
+	 * the siblings between <code>left</code> and <code>right</code> should move
+	 * by an even share of it.
+	 */
+	private static void moveSubtree(Tnode left, Tnode right, double shift) {
+		int subtrees = right.number - left.number;
+		right.change -= shift / subtrees;
+		right.shift += shift;
+		left.change += shift / subtrees;
+		right.prelim += shift;
+		right.mod += shift;
+	}
+
+	/**
+	 * Apply the shares noted by {@link #moveSubtree(Tnode, Tnode, double)} to
+	 * the children of <code>v</code>, in one pass from right to left.
+	 */
+	private static void executeShifts(Tnode v) {
+		double shift = 0;
+		double change = 0;
+		for (int i = v.children.size() - 1; i >= 0; i--) {
+			Tnode w = v.children.get(i);
+			w.prelim += shift;
+			w.mod += shift;
+			change += w.change;
+			shift += w.shift + change;
+		}
+	}
+
+	/**
+	 * @return how far apart the centers of two neighbouring cards of a level
+	 *         must be
+	 */
+	private static double distance(Tnode left, Tnode right) {
+		return (left.node.getWidth() + right.node.getWidth()) / 2.0 + COL_SEPARATION;
+	}
+
+	/**
+	 * Turn the preliminary x of each node into its final x by adding up the
+	 * modifiers of its ancestors, parents before children, and stack the levels
+	 * into rows. The root's card keeps its center-top at (x,y).
+	 *
+	 * @return true if any node moved
+	 */
+	private boolean secondWalk(int x, int y) {
+		int depth = order.get(order.size() - 1).depth;
+		int[] rowTops = new int[depth + 1];
+		for (Tnode t : order) {
+			rowTops[t.depth] = max(rowTops[t.depth], t.node.getHeight());
+		}
+		int top = y;
+		for (int d = 0; d <= depth; d++) {
+			int height = rowTops[d];
+			rowTops[d] = top;
+			top += height + ROW_SEPARATION;
+		}
+		boolean modified = false;
+		double offset = x - root.prelim;
+		root.modSum = 0;
+		for (Tnode t : order) {
+			for (Tnode child : t.children) {
+				child.modSum = t.modSum + t.mod;
+			}
+			int newX = (int) Math.round(t.prelim + t.modSum + offset) - t.node.getWidth() / 2;
+			int newY = rowTops[t.depth];
+			modified |= (t.node.getX() != newX || t.node.getY() != newY);
+			t.node.setX(newX);
+			t.node.setY(newY);
+		}
+		return modified;
+	}
+
+	/**
+	 * Set the sides of the edges of the hierarchy, as {@link Arranger} does:
+	 * bottom to top from parent to child, and sideways for backlinks.
+	 *
+	 * @return true if any edge changed
+	 */
+	private boolean fixEdges() {
+		boolean modified = false;
+		for (Tnode t : order) {
+			for (Edge e : t.childEdges) {
+				modified |= setSides(e, Edge.Side.bottom, Edge.Side.top);
+			}
+			if (t.backlinks.isEmpty()) {
+				continue;
+			}
+			int center = t.node.getX() + t.node.getWidth() / 2;
+			for (int i = 0; i < t.backlinks.size(); i++) {
+				Node other = t.backlinkTargets.get(i).node;
+				if (other.getX() + other.getWidth() / 2 < center) {
+					modified |= setSides(t.backlinks.get(i), Edge.Side.left, Edge.Side.right);
+				} else {
+					modified |= setSides(t.backlinks.get(i), Edge.Side.right, Edge.Side.left);
+				}
+			}
+		}
+		return modified;
+	}
+
+	private static boolean setSides(Edge e, Edge.Side from, Edge.Side to) {
+		if (e.getFromSide() == from && e.getToSide() == to) {
+			return false;
+		}
+		e.setFromSide(from);
+		e.setToSide(to);
+		return true;
+	}
+
+	private static final Comparator<Tnode> leftToRight = Comparator.comparingInt(t -> t.node.getX());
+
+	private static class Tnode {
+
+		final Node node;
+		final Tnode parent;
+		final int depth;
+		final List<Tnode> children = new ArrayList<>();
+		/** The edge to each child, in the order the children were found. */
+		final List<Edge> childEdges = new ArrayList<>();
+		final List<Edge> backlinks = new ArrayList<>();
+		final List<Tnode> backlinkTargets = new ArrayList<>();
+		/** This node's position among its siblings, counting from 1. */
+		int number;
+		/** The x of this node's center relative to its parent's subtree. */
+		double prelim;
+		/** How far this node's descendants are moved relative to it. */
+		double mod;
+		/** Where the node would be centered over its children. */
+		double midpoint;
+		/** The sum of the mods of this node's ancestors. */
+		double modSum;
+		/** For the ends of outlines, the next node of the outline one level down. */
+		Tnode thread;
+		/** The sibling-subtree this node was last seen to belong to, while fitting. */
+		Tnode ancestor = this;
+		/** Shares of moves still to be applied by executeShifts(). */
+		double shift;
+		double change;
+
+		Tnode(Node node, Tnode parent, int depth) {
+			this.node = node;
+			this.parent = parent;
+			this.depth = depth;
+		}
+
+		public String toString() {
+			return "tnode:" + node.toString();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package com.github.glfrazier.canvasarranger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches every <code>*.canvas</code> file under an Obsidian vault and keeps
+ * them arranged. One thread waits on a {@link WatchService} registered on every
+ * directory of the vault; the arranging is done by a fixed-size pool of
+ * workers that all canvases share.
+ * <p>
+ * Changes are first debounced by a per-canvas {@link ChangeScheduler}, on a
+ * single timer thread, so that a burst of writes becomes one cycle. Each
+ * canvas then has at most one cycle queued or running at a time: bursts that
+ * end while a cycle is queued are absorbed by it, and bursts that end while it
+ * runs cause exactly one follow-up cycle. The number of threads is
+ * therefore fixed, the work queue never holds more than one entry per canvas,
+ * and because {@link CanvasArranger#update()} releases the parsed model after
+ * each cycle an idle canvas costs only a handful of fields. The geometry kept
+ * for incremental layout is retained only for the most recently arranged
+ * canvases.
+ * <p>
+ * Only canvases that opt in (see {@link CanvasArranger#setRequireOptIn}) are
+ * actually rearranged.
+ */
+public class VaultDaemon implements Runnable {
+
+	private static final String CANVAS_SUFFIX = ".canvas";
+
+	private final Path vaultRoot;
+	private final WatchService watcher;
+	private final Map<Path, TrackedCanvas> canvases;
+	private final ExecutorService workers;
+	/** Waits out the quiet period of each burst of changes. */
+	private final ScheduledExecutorService timer;
+	/**
+	 * The canvases whose layout state is being kept, least recently arranged
+	 * first. Keeping it lets an edit be laid out incrementally, but it costs
+	 * memory proportional to the canvas, so only the most recently arranged
+	 * <code>retainedLayouts</code> canvases keep theirs.
+	 */
+	private final Map<TrackedCanvas, Boolean> recentlyArranged;
+	private final int retainedLayouts;
+	private volatile boolean pendingExit;
+
+	public VaultDaemon(Path vaultRoot) throws IOException {
+		this(vaultRoot, Integer.getInteger("canvasarranger.threads", Runtime.getRuntime().availableProcessors()));
+	}
+
+	public VaultDaemon(Path vaultRoot, int threads) throws IOException {
+		this.vaultRoot = vaultRoot.toAbsolutePath().normalize();
+		watcher = this.vaultRoot.getFileSystem().newWatchService();
+		canvases = new ConcurrentHashMap<>();
+		workers = Executors.newFixedThreadPool(Math.max(1, threads), new WorkerThreadFactory("canvas-arranger-"));
+		timer = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("canvas-scheduler-"));
+		recentlyArranged = new LinkedHashMap<>(16, 0.75f, true);
+		retainedLayouts = Integer.getInteger("canvasarranger.retainedLayouts", 64);
+	}
+
+	@Override
+	public void run() {
+		try {
+			scan(vaultRoot);
+		} catch (IOException e) {
+			System.err.println("Failed to scan the vault " + vaultRoot + ": " + e);
+			shutdown();
+			return;
+		}
+		System.out.println("Watching " + canvases.size() + " canvases under " + vaultRoot);
+		while (!pendingExit) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				break;
+			}
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					System.err.println("Watch events were lost; rescanning " + vaultRoot);
+					rescan();
+					continue;
+				}
+				handleEvent(event.kind(), dir.resolve((Path) event.context()));
+			}
+			key.reset();
+		}
+		shutdown();
+	}
+
+	private void handleEvent(WatchEvent.Kind<?> kind, Path path) {
+		if (kind == ENTRY_CREATE && Files.isDirectory(path)) {
+			try {
+				scan(path);
+			} catch (IOException e) {
+				System.err.println("Failed to scan the new directory " + path + ": " + e);
+			}
+			return;
+		}
+		if (!isCanvas(path)) {
+			return;
+		}
+		if (kind == ENTRY_DELETE) {
+			untrack(path);
+			return;
+		}
+		track(path).changed();
+	}
+
+	/**
+	 * Register <code>start</code> and every directory below it with the watch
+	 * service, and schedule a first cycle for each canvas found.
+	 */
+	private void scan(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (!dir.equals(vaultRoot) && isHidden(dir)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && isCanvas(file)) {
+					track(file).changed();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.err.println("Cannot read " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * After an overflow we cannot know what changed: forget canvases that have
+	 * disappeared and give every remaining one a chance to notice a change. A
+	 * canvas whose modification time is unchanged costs only a stat.
+	 */
+	private void rescan() {
+		for (Path path : new ArrayList<>(canvases.keySet())) {
+			if (!Files.exists(path)) {
+				untrack(path);
+			}
+		}
+		try {
+			scan(vaultRoot);
+		} catch (IOException e) {
+			System.err.println("Failed to rescan the vault " + vaultRoot + ": " + e);
+		}
+	}
+
+	/**
+	 * Note that <code>c</code> has just been arranged, and make the least
+	 * recently arranged canvas forget its layout if too many are being kept.
+	 */
+	private void retain(TrackedCanvas c) {
+		TrackedCanvas evicted = null;
+		synchronized (recentlyArranged) {
+			recentlyArranged.put(c, Boolean.TRUE);
+			if (recentlyArranged.size() > retainedLayouts) {
+				Iterator<TrackedCanvas> iter = recentlyArranged.keySet().iterator();
+				evicted = iter.next();
+				iter.remove();
+			}
+		}
+		if (evicted != null) {
+			evicted.arranger.forgetLayout();
+		}
+	}
+
+	private TrackedCanvas track(Path path) {
+		return canvases.computeIfAbsent(path, TrackedCanvas::new);
+	}
+
+	private void untrack(Path path) {
+		TrackedCanvas c = canvases.remove(path);
+		if (c != null) {
+			synchronized (recentlyArranged) {
+				recentlyArranged.remove(c);
+			}
+			c.arranger.close();
+			System.out.println("No longer tracking " + path);
+		}
+	}
+
+	static boolean isCanvas(Path path) {
+		Path name = path.getFileName();
+		return name != null && name.toString().endsWith(CANVAS_SUFFIX);
+	}
+
+	static boolean isHidden(Path dir) {
+		Path name = dir.getFileName();
+		return name != null && name.toString().startsWith(".");
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			pendingExit = true;
+			timer.shutdownNow();
+			workers.shutdown();
+		}
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			// Closing is best-effort.
+		}
+		try {
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run <code>task</code> on the timer after <code>delayMillis</code>, unless
+	 * the daemon is shutting down. The check and the scheduling are done under
+	 * the lock {@link #shutdown()} takes, so the timer is never asked to take a
+	 * task after it has been shut down.
+	 */
+	private synchronized void schedule(Runnable task, long delayMillis) {
+		if (!pendingExit) {
+			timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Queue <code>task</code> for a worker, unless the daemon is shutting down;
+	 * like {@link #schedule(Runnable, long)}, under the lock
+	 * {@link #shutdown()} takes.
+	 *
+	 * @return false if the task was dropped
+	 */
+	private synchronized boolean submit(Runnable task) {
+		if (pendingExit) {
+			return false;
+		}
+		workers.execute(task);
+		return true;
+	}
+
+	/**
+	 * A canvas under the vault, with the state needed to keep at most one of
+	 * its cycles queued or running.
+	 */
+	private class TrackedCanvas implements Runnable {
+
+		private final Path path;
+		private final CanvasArranger arranger;
+		private final ChangeScheduler changes;
+		private boolean scheduled;
+		private boolean dirty;
+
+		TrackedCanvas(Path path) {
+			this.path = path;
+			try {
+				arranger = new CanvasArranger(path.toString());
+			} catch (IOException e) {
+				// The constructor does no I/O.
+				throw new IllegalStateException(e);
+			}
+			arranger.setRequireOptIn(true);
+			changes = new ChangeScheduler();
+		}
+
+		/**
+		 * Note a change, abandoning any cycle still at work on an older version,
+		 * and, unless one is already waiting, start waiting for the burst it
+		 * belongs to to end.
+		 */
+		void changed() {
+			arranger.abandonIfSuperseded();
+			if (changes.changed(System.nanoTime())) {
+				schedule(this::checkSettled, changes.getQuietMillis());
+			}
+		}
+
+		/**
+		 * Runs on the timer: either the burst is over and a cycle is queued, or the
+		 * check is rescheduled.
+		 */
+		private void checkSettled() {
+			File f = arranger.getCanvasFile();
+			long delay = changes.delayMillis(System.nanoTime(), f.length(), f.lastModified());
+			if (delay > 0) {
+				schedule(this::checkSettled, delay);
+				return;
+			}
+			synchronized (this) {
+				dirty = true;
+				if (!scheduled) {
+					scheduled = submit(this);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				dirty = false;
+			}
+			try {
+				if (arranger.update()) {
+					retain(this);
+				}
+			} catch (RuntimeException e) {
+				System.err.println("Failed to arrange " + path + ":");
+				e.printStackTrace();
+			}
+			if (arranger.isExitPending()) {
+				System.out.println("Exit requested from " + path);
+				pendingExit = true;
+				try {
+					watcher.close();
+				} catch (IOException e) {
+					// We are leaving anyway.
+				}
+			}
+			synchronized (this) {
+				scheduled = dirty && canvases.get(path) == this && submit(this);
+			}
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.github.glfrazier.canvasarranger;
+
+import java.io.File;
+import java.util.zip.CRC32C;
+
+/**
+ * What a canvas looked like right after the arranger wrote it: its size, its
+ * last-modified time and a CRC-32C of its content. Saving a canvas changes its
+ * modification time, and so raises a change event of its own; the signature
+ * lets that event be recognized without reading the canvas again.
+ * <p>
+ * A matching size and modification time is taken as proof that the file is
+ * still the one written. If only the modification time differs (the file was
+ * touched, or written again with identical content), the content is hashed and
+ * compared before it is parsed.
+ */
+public class WriteSignature {
+
+	private final long size;
+	private final long modified;
+	private final long hash;
+
+	/**
+	 * @param size     the number of bytes written
+	 * @param modified the last-modified time of the file after the write, or -1
+	 *                 if it is not known to belong to this write
+	 * @param hash     the CRC-32C of the bytes written
+	 */
+	public WriteSignature(long size, long modified, long hash) {
+		this.size = size;
+		this.modified = modified;
+		this.hash = hash;
+	}
+
+	/**
+	 * @return true if the file's size and modification time are those of the
+	 *         write; its content must then be the content written
+	 */
+	public boolean matches(File file, long modified) {
+		return modified == this.modified && file.length() == size;
+	}
+
+	/**
+	 * @return true if the file could still hold the content written; only then is
+	 *         it worth hashing
+	 */
+	public boolean mayMatch(File file) {
+		return file.length() == size;
+	}
+
+	/**
+	 * @return true if <code>content</code> is the content written
+	 */
+	public boolean matches(byte[] content) {
+		return content.length == size && hash(content) == hash;
+	}
+
+	/**
+	 * @return true if the prescanned canvas is the content written
+	 */
+	public boolean matches(CanvasPrescan scan) {
+		return scan.getSize() == size && scan.getChecksum() == hash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public long getHash() {
+		return hash;
+	}
+
+	public static long hash(byte[] content) {
+		CRC32C crc = new CRC32C();
+		crc.update(content, 0, content.length);
+		return crc.getValue();
+	}
+}